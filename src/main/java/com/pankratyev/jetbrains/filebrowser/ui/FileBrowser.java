@@ -31,6 +31,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -141,6 +142,18 @@ public final class FileBrowser {
         }
     }
 
+    /**
+     * Appends passed {@link FileObject}s to the displayed ones (e.g. the next page of directory listing).
+     * Passed list is sorted, but the whole file list is not re-sorted.
+     */
+    void addCurrentDirectoryContents(@Nonnull List<FileObject> contents) {
+        List<FileObject> sorted = new ArrayList<>(contents);
+        Collections.sort(sorted, FILE_OBJECT_COMPARATOR);
+        for (FileObject fileObject : sorted) {
+            fileListModel.addElement(fileObject);
+        }
+    }
+
     void setCurrentPath(@Nonnull String path) {
         if (isFtpMode()) {
             path = ftpPathPrefix + path;
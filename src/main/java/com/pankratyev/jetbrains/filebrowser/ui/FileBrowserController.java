@@ -2,6 +2,8 @@ package com.pankratyev.jetbrains.filebrowser.ui;
 
 import com.pankratyev.jetbrains.filebrowser.vfs.FileObject;
 import com.pankratyev.jetbrains.filebrowser.vfs.ftp.FtpClient;
+import com.pankratyev.jetbrains.filebrowser.vfs.ftp.FtpFileObject;
+import com.pankratyev.jetbrains.filebrowser.vfs.ftp.ListingPageConsumer;
 import com.pankratyev.jetbrains.filebrowser.ui.filetype.FileType;
 import com.pankratyev.jetbrains.filebrowser.ui.filetype.provider.FileTypeProvider;
 import com.pankratyev.jetbrains.filebrowser.vfs.zip.ZipUtils;
@@ -9,6 +11,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.swing.JComponent;
 import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
@@ -68,18 +71,44 @@ public final class FileBrowserController {
         }
 
         // changing the directory may take some time (e.g. when using FTP); so it should be executed in separate thread
-        runSwingWorker(new SwingWorker<List<FileObject>, Void>() {
+        runSwingWorker(new SwingWorker<List<FileObject>, List<FileObject>>() {
+            private boolean pagesDisplayed = false; // accessed from EDT only
+
+            /**
+             * Displays pages of directory listing as they are received (FTP only).
+             */
             @Override
-            protected void process(List<Void> chunks) {
-                if (browser.isFtpMode()) {
+            protected void process(List<List<FileObject>> pages) {
+                if (isCancelled()) {
+                    return;
+                }
+                if (pages.isEmpty() && browser.isFtpMode()) {
                     browser.showPreloader();
                 }
+                for (List<FileObject> page : pages) {
+                    if (pagesDisplayed) {
+                        browser.addCurrentDirectoryContents(page);
+                    } else {
+                        List<FileObject> contents = new ArrayList<>();
+                        if (fileObject.hasParent()) {
+                            contents.add(ParentDirFileObject.createFor(fileObject));
+                        }
+                        contents.addAll(page);
+                        setupBrowser(contents, fileObject.getFullName());
+                        pagesDisplayed = true;
+                    }
+                }
             }
 
             @Override
             protected List<FileObject> doInBackground() throws IOException {
                 publish();
-                return getFileObjectsToDisplay(fileObject);
+                return getFileObjectsToDisplay(fileObject, new ListingPageConsumer() {
+                    @Override
+                    public void accept(@Nonnull List<FileObject> page) {
+                        publish(page);
+                    }
+                });
             }
 
             @Override
@@ -94,8 +123,8 @@ public final class FileBrowserController {
                         FileObject wasSelected = browser.getSelectedFileObject();
                         setupBrowser(fileObjectsToDisplay, fileObject.getFullName());
 
-                        if (fileObject.equals(currentFileObject) && wasSelected != null) {
-                            // refresh
+                        if ((fileObject.equals(currentFileObject) || pagesDisplayed) && wasSelected != null) {
+                            // refresh or selected while listing was being received
                             browser.setSelectedFileObject(wasSelected);
                         } else if (currentFileObject != null) {
                             // select previously opened child if was navigated to parent
@@ -140,6 +169,11 @@ public final class FileBrowserController {
     void showPreview(@Nonnull final FileObject fileObject, final boolean showPreloader) {
         ensureEdt();
 
+        if (ftpClient != null && fileObject instanceof FtpFileObject && fileObject.isDirectory()) {
+            // so the directory is opened instantly if user opens it
+            ftpClient.prefetch((FtpFileObject) fileObject);
+        }
+
         runSwingWorker(new SwingWorker<JComponent, Void>() {
             @Override
             protected void process(List<Void> chunks) {
@@ -200,6 +234,7 @@ public final class FileBrowserController {
             @Override
             protected List<FileObject> doInBackground() {
                 publish();
+                client.warmUp();
 
                 try {
                     FileObject fileObject = client.getInitialDirectory();
@@ -259,6 +294,14 @@ public final class FileBrowserController {
     }
 
     private List<FileObject> getFileObjectsToDisplay(FileObject fileObject) throws IOException {
+        return getFileObjectsToDisplay(fileObject, null);
+    }
+
+    /**
+     * @param consumer receives FTP directory children in pages while they are listed; ignored for other files.
+     */
+    private List<FileObject> getFileObjectsToDisplay(FileObject fileObject, @Nullable ListingPageConsumer consumer)
+            throws IOException {
         List<FileObject> fileObjectsToDisplay = new ArrayList<>();
 
         // add '..' parent folder
@@ -266,7 +309,9 @@ public final class FileBrowserController {
             fileObjectsToDisplay.add(ParentDirFileObject.createFor(fileObject));
         }
 
-        List<FileObject> children = fileObject.getChildren();
+        List<FileObject> children = consumer != null && fileObject instanceof FtpFileObject && fileObject.isDirectory()
+                ? ((FtpFileObject) fileObject).listChildren(consumer)
+                : fileObject.getChildren();
         if (children != null) {
             fileObjectsToDisplay.addAll(children);
         } else {
@@ -278,13 +323,16 @@ public final class FileBrowserController {
 
     public void disconnectFromFtp() {
         ensureEdt();
+        if (ftpClient != null) {
+            ftpClient.close();
+        }
         ftpClient = null;
         browser.disableFtpMode();
     }
 
     /**
-     * Reopens currently opened path (directory or archive). If FTP connection is established a local copies
-     * for currently opened path will be invalidated.
+     * Reopens currently opened path (directory or archive). If FTP connection is established a local copies and
+     * cached directory listings for currently opened path will be invalidated.
      */
     public void refresh() {
         ensureEdt();
@@ -297,6 +345,7 @@ public final class FileBrowserController {
 
         if (ftpClient != null) {
             ftpClient.getLocalCopyManager().invalidate(currentFileObject.getFullName());
+            ftpClient.invalidateListings(currentFileObject.getFullName());
         }
 
         changeDirectory(currentFileObject);
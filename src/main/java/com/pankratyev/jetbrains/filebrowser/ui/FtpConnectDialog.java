@@ -114,6 +114,7 @@ public class FtpConnectDialog extends JDialog {
                     createdClient.testConnection();
                     return null;
                 } catch (IOException e) {
+                    createdClient.close();
                     createdClient = null;
                     return e.getMessage();
                 }
@@ -78,6 +78,11 @@ final class ParentDirFileObject implements FileObject {
         return child.getParent().getInputStream();
     }
 
+    @Override
+    public InputStream getHeadInputStream(long maxLength) throws IOException {
+        return child.getParent().getHeadInputStream(maxLength);
+    }
+
     @SuppressWarnings("EqualsWhichDoesntCheckParameterClass")
     @Override
     public boolean equals(Object o) {
@@ -17,11 +17,17 @@ import java.io.InputStream;
 public final class ImagePreviewGenerator implements PreviewGenerator {
     private static final Logger LOGGER = LoggerFactory.getLogger(PreviewGenerator.class);
 
+    /**
+     * Max count of bytes read to generate a preview; larger images are not previewed.
+     * Image decoders stop reading after the image data, so trailing file contents are not read (or downloaded).
+     */
+    private static final long LENGTH_LIMIT = 32 * 1024 * 1024;
+
     @Nonnull
     @Override
     public JComponent generatePreview(@Nonnull FileObject fileObject, int maxWidth, int maxHeight) {
         try {
-            try (InputStream is = fileObject.getInputStream()) {
+            try (InputStream is = fileObject.getHeadInputStream(LENGTH_LIMIT)) {
                 if (is != null) {
                     BufferedImage fileImage = ImageIO.read(is);
                     if (fileImage != null) {
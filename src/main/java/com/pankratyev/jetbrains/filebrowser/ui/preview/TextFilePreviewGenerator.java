@@ -21,12 +21,16 @@ public final class TextFilePreviewGenerator implements PreviewGenerator {
     private static final Logger LOGGER = LoggerFactory.getLogger(PreviewGenerator.class);
 
     private static final int LINE_COUNT_LIMIT = 100;
+    /**
+     * Max count of bytes read to generate a preview; the rest of file is not read (or downloaded).
+     */
+    private static final int LENGTH_LIMIT = 64 * 1024;
 
     @Nonnull
     @Override
     public JComponent generatePreview(@Nonnull FileObject fileObject, int maxWidth, int maxHeight) {
         try {
-            try (InputStream is = fileObject.getInputStream()) {
+            try (InputStream is = fileObject.getHeadInputStream(LENGTH_LIMIT)) {
                 if (is != null) {
                     try (LineNumberReader reader = new LineNumberReader(
                             new InputStreamReader(is, StandardCharsets.UTF_8))) {
@@ -1,10 +1,12 @@
 package com.pankratyev.jetbrains.filebrowser.vfs;
 
 import com.pankratyev.jetbrains.filebrowser.vfs.zip.ZipUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Objects;
 
@@ -57,6 +59,16 @@ public abstract class AbstractFileObject implements FileObject {
         return null;
     }
 
+    /**
+     * Default implementation limits the stream returned by {@link #getInputStream()}.
+     */
+    @Nullable
+    @Override
+    public InputStream getHeadInputStream(long maxLength) throws IOException {
+        InputStream is = getInputStream();
+        return is == null ? null : new BoundedInputStream(is, maxLength);
+    }
+
     @Nonnull
     protected abstract List<FileObject> getDirectoryChildren() throws IOException;
 
@@ -0,0 +1,211 @@
+package com.pankratyev.jetbrains.filebrowser.vfs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Tracks files cached to local disk (FTP file local copies, extracted nested archives) and keeps their total size
+ * within a byte budget: when budget is exceeded least recently used files are deleted in background.
+ * Files are registered with {@link #put(Path)} after they are written and accessed with {@link #touch(Path)}.
+ */
+@ThreadSafe
+public final class DiskCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiskCache.class);
+
+    /**
+     * Default budget (in bytes) of temp files cache. May be overridden with "filebrowser.diskCache.maxSize" system
+     * property.
+     */
+    private static final long TEMP_FILES_CACHE_MAX_SIZE =
+            Long.getLong("filebrowser.diskCache.maxSize", 512L * 1024 * 1024);
+
+    private static final DiskCache TEMP_FILES_CACHE = new DiskCache(TEMP_FILES_CACHE_MAX_SIZE);
+
+    private final long maxSize;
+
+    /**
+     * Cached file to its size; in access order.
+     */
+    private final Map<Path, Long> files = new LinkedHashMap<>(16, 0.75f, true); // guarded by this
+    private long size = 0; // guarded by this
+    private long hitCount = 0; // guarded by this
+    private long missCount = 0; // guarded by this
+    private long evictionCount = 0; // guarded by this
+    private boolean evictionScheduled = false; // guarded by this
+
+    private final ExecutorService evictionService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread thread = new Thread(r, "DiskCache eviction");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param maxSize total size in bytes of cached files after which least recently used files are evicted.
+     */
+    public DiskCache(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Max size must not be negative: " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return cache shared by all temp files of this program instance.
+     */
+    @Nonnull
+    public static DiskCache getTempFilesCache() {
+        return TEMP_FILES_CACHE;
+    }
+
+    /**
+     * Registers a file which has been just written (or rewritten) to local disk.
+     * @throws IOException if file size can't be read.
+     */
+    public void put(@Nonnull Path file) throws IOException {
+        long fileSize = Files.size(file);
+        boolean scheduleEviction;
+        synchronized (this) {
+            Long previousSize = files.put(file, fileSize);
+            if (previousSize != null) {
+                size -= previousSize;
+            }
+            size += fileSize;
+            scheduleEviction = size > maxSize && !evictionScheduled;
+            if (scheduleEviction) {
+                evictionScheduled = true;
+            }
+        }
+
+        if (scheduleEviction) {
+            evictionService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    evictExcessive();
+                }
+            });
+        }
+    }
+
+    /**
+     * Marks passed file as recently used. A file present on disk but not registered yet is registered.
+     * @return true if file exists (cache hit); false otherwise (cache miss).
+     */
+    public boolean touch(@Nonnull Path file) {
+        if (!Files.isRegularFile(file)) {
+            synchronized (this) {
+                missCount++;
+                Long fileSize = files.remove(file);
+                if (fileSize != null) {
+                    size -= fileSize;
+                }
+            }
+            return false;
+        }
+
+        boolean registered;
+        synchronized (this) {
+            hitCount++;
+            registered = files.get(file) != null;
+        }
+        if (!registered) {
+            try {
+                put(file);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to register cached file " + file, e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops tracking passed file and all files under it if it is a directory. Files are not deleted.
+     */
+    public synchronized void remove(@Nonnull Path path) {
+        Iterator<Map.Entry<Path, Long>> it = files.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Long> entry = it.next();
+            if (entry.getKey().startsWith(path)) {
+                size -= entry.getValue();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Deletes least recently used files until total size fits in budget.
+     */
+    void evictExcessive() {
+        List<Path> evicted = new ArrayList<>();
+        synchronized (this) {
+            evictionScheduled = false;
+            Iterator<Map.Entry<Path, Long>> it = files.entrySet().iterator();
+            while (size > maxSize && it.hasNext()) {
+                Map.Entry<Path, Long> entry = it.next();
+                size -= entry.getValue();
+                it.remove();
+                evicted.add(entry.getKey());
+                evictionCount++;
+            }
+        }
+
+        for (Path file : evicted) {
+            LOGGER.debug("Evicting cached file {}", file);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to delete evicted file " + file, e);
+            }
+        }
+        if (!evicted.isEmpty()) {
+            LOGGER.debug("Disk cache eviction finished: {}", this);
+        }
+    }
+
+    /**
+     * @return total size in bytes of tracked files.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DiskCache{" +
+                "maxSize=" + maxSize +
+                ", size=" + size +
+                ", files=" + files.size() +
+                ", hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", evictionCount=" + evictionCount +
+                '}';
+    }
+}
@@ -54,4 +54,15 @@ public interface FileObject {
      */
     @Nullable
     InputStream getInputStream() throws IOException;
+
+    /**
+     * Unlike {@link #getInputStream()} this method doesn't require the whole file to be available, so it should be
+     * used when only the beginning of a file is needed (e.g. to generate a preview).
+     * @param maxLength max count of bytes to read.
+     * @return input stream reading at most maxLength first bytes of this {@link FileObject} if it is a file; null if
+     * it is a directory.
+     * @throws IOException on any I/O errors.
+     */
+    @Nullable
+    InputStream getHeadInputStream(long maxLength) throws IOException;
 }
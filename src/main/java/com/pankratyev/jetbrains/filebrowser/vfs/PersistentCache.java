@@ -0,0 +1,225 @@
+package com.pankratyev.jetbrains.filebrowser.vfs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of file contents stored on local disk between program runs and shared by all program instances.
+ * Contents are identified by a content key (e.g. FTP URL plus remote size and modification time) so outdated
+ * contents are never returned. Entries are written to a temp file and then atomically renamed; concurrent loading
+ * of the same entry is prevented with a file lock, so several processes may share the cache directory.
+ * <p>
+ * Cache is disabled unless "filebrowser.cache.dir" system property is set.
+ */
+@ThreadSafe
+public final class PersistentCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistentCache.class);
+
+    private static final String CACHE_DIR_PROPERTY = "filebrowser.cache.dir";
+    private static final PersistentCache INSTANCE = createInstance();
+
+    private static final String LOCK_FILE_SUFFIX = ".lock";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private final Path directory;
+    /**
+     * File locks are held by the whole JVM so entries being loaded are also locked inside this process; a lock is
+     * created per entry and removed when no thread holds or waits for it.
+     */
+    private final Map<String, InProcessLock> inProcessLocks = new HashMap<>(); // guarded by itself
+
+    /**
+     * Loads contents to store in cache.
+     */
+    public interface Loader {
+        void load(@Nonnull OutputStream os) throws IOException;
+    }
+
+    /**
+     * Loads contents to store in cache directly into a file; used by loaders which need random access (e.g. to
+     * write several parts of contents concurrently).
+     */
+    public interface FileLoader {
+        /**
+         * @param file empty file to write contents to.
+         */
+        void load(@Nonnull Path file) throws IOException;
+    }
+
+    /**
+     * @param directory directory to store cached contents in; it may be shared with other processes.
+     */
+    public PersistentCache(@Nonnull Path directory) {
+        this.directory = Objects.requireNonNull(directory);
+    }
+
+    /**
+     * @return persistent cache; null if it is not enabled.
+     */
+    @Nullable
+    public static PersistentCache getInstance() {
+        return INSTANCE;
+    }
+
+    private static PersistentCache createInstance() {
+        String dir = System.getProperty(CACHE_DIR_PROPERTY);
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        LOGGER.info("Persistent cache directory: {}", dir);
+        return new PersistentCache(Paths.get(dir));
+    }
+
+    /**
+     * @param key content key.
+     * @return cached file with contents for passed key; null if not present.
+     */
+    @Nullable
+    public Path get(@Nonnull String key) {
+        Path file = getFile(key);
+        if (Files.isRegularFile(file)) {
+            LOGGER.debug("Persistent cache hit: {}", key);
+            return file;
+        }
+        return null;
+    }
+
+    /**
+     * Returns cached file for passed key; if not present, contents are loaded and stored. If the same key is being
+     * loaded by another thread or process this method waits and uses the loaded contents.
+     * @param key content key.
+     * @param loader used to load contents if they are absent in cache.
+     * @return cached file with contents for passed key; it must not be modified.
+     * @throws IOException on any I/O errors (including the ones thrown by loader).
+     */
+    @Nonnull
+    public Path getOrLoad(@Nonnull String key, @Nonnull final Loader loader) throws IOException {
+        Objects.requireNonNull(loader);
+        return getOrLoad(key, new FileLoader() {
+            @Override
+            public void load(@Nonnull Path file) throws IOException {
+                try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(file))) {
+                    loader.load(os);
+                }
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #getOrLoad(String, Loader)}, but contents are written by loader directly into a file.
+     */
+    @Nonnull
+    public Path getOrLoad(@Nonnull String key, @Nonnull FileLoader loader) throws IOException {
+        Path file = get(key);
+        if (file != null) {
+            return file;
+        }
+
+        file = getFile(key);
+        Files.createDirectories(directory);
+        Path lockFile = directory.resolve(file.getFileName() + LOCK_FILE_SUFFIX);
+        String name = file.getFileName().toString();
+        InProcessLock inProcessLock = lockInProcess(name);
+        try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock ignored = lockChannel.lock()) {
+            if (Files.isRegularFile(file)) { // loaded by another thread or process
+                LOGGER.debug("Persistent cache hit after waiting: {}", key);
+                return file;
+            }
+
+            LOGGER.debug("Loading to persistent cache: {}", key);
+            Path tempFile = Files.createTempFile(directory, name, TEMP_FILE_SUFFIX);
+            try {
+                loader.load(tempFile);
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | RuntimeException e) {
+                VfsUtils.deleteQuietly(tempFile);
+                throw e;
+            }
+            // the entry is present now, so whoever takes the lock next (even on a new lock file) won't load it again
+            VfsUtils.deleteQuietly(lockFile);
+        } finally {
+            unlockInProcess(name, inProcessLock);
+        }
+        return file;
+    }
+
+    private InProcessLock lockInProcess(String name) throws InterruptedIOException {
+        InProcessLock lock;
+        synchronized (inProcessLocks) {
+            lock = inProcessLocks.get(name);
+            if (lock == null) {
+                lock = new InProcessLock();
+                inProcessLocks.put(name, lock);
+            }
+            lock.users++;
+        }
+        try {
+            lock.lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            release(name, lock);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for persistent cache entry");
+        }
+        return lock;
+    }
+
+    private void unlockInProcess(String name, InProcessLock lock) {
+        lock.lock.unlock();
+        release(name, lock);
+    }
+
+    private void release(String name, InProcessLock lock) {
+        synchronized (inProcessLocks) {
+            if (--lock.users == 0) {
+                inProcessLocks.remove(name);
+            }
+        }
+    }
+
+    private Path getFile(String key) {
+        return directory.resolve(sha256(key));
+    }
+
+    private static String sha256(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-256 is supported by every Java platform
+        }
+    }
+
+
+    private static final class InProcessLock {
+        private final Lock lock = new ReentrantLock();
+        private int users = 0; // guarded by inProcessLocks
+    }
+}
@@ -0,0 +1,27 @@
+package com.pankratyev.jetbrains.filebrowser.vfs;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Random-access source of file bytes. Used to read only required parts of a file (e.g. zip archive central
+ * directory) without obtaining the whole file.
+ */
+public interface SeekableSource {
+    /**
+     * @return size of this source in bytes.
+     * @throws IOException on any I/O errors.
+     */
+    long size() throws IOException;
+
+    /**
+     * Opens a stream reading bytes of this source starting from passed position up to the end of this source.
+     * The stream may be closed before all the bytes are read; implementations should not transfer unread bytes.
+     * @param position zero-based position of the first byte to read.
+     * @return stream which should be closed after use.
+     * @throws IOException on any I/O errors.
+     */
+    @Nonnull
+    InputStream openStream(long position) throws IOException;
+}
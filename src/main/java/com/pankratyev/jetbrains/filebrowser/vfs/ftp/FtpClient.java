@@ -1,28 +1,62 @@
 package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
 
+import com.pankratyev.jetbrains.filebrowser.ui.filetype.TextFileType;
+import com.pankratyev.jetbrains.filebrowser.ui.filetype.provider.ExtensionBasedFileTypeProvider;
+import com.pankratyev.jetbrains.filebrowser.ui.filetype.provider.FileTypeProvider;
 import com.pankratyev.jetbrains.filebrowser.vfs.FileObject;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPClientConfig;
 import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPFileEntryParser;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.ftp.parser.DefaultFTPFileEntryParserFactory;
+import org.apache.commons.net.ftp.parser.MLSxEntryParser;
+import org.apache.commons.net.ftp.parser.ParserInitializationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * FTP client with {@link FileObject}-based API.
+ * Logged-in connections are kept in {@link FtpConnectionPool} and reused by subsequent operations.
  * None of its methods should be called from EDT (obviously).
  */
 @ThreadSafe
@@ -34,16 +68,163 @@ public final class FtpClient {
     private static final String FTP_DEFAULT_USERNAME = "anonymous";
     private static final String FTP_DEFAULT_PASSWORD = "anonymous";
     private static final int FTP_TIMEOUT = 30 * 1000; // millis
+    private static final String FTP_SIZE_COMMAND = "SIZE";
+    private static final int REPLY_CODE_LENGTH = 3;
+    private static final String FTP_MLST_FEATURE = "MLST";
+    private static final String FTP_MLSD_COMMAND = "MLSD";
+    private static final String FTP_LIST_COMMAND = "LIST";
+    private static final String FTP_RETR_COMMAND = "RETR";
+    private static final String FTP_RECURSIVE_LIST_OPTION = "-R";
+    private static final String LIST_SECTION_HEADER_SUFFIX = ":";
+    private static final String FTP_REST_FEATURE = "REST";
+    private static final String FTP_REST_STREAM = "STREAM";
+    private static final String FTP_MODE_FEATURE = "MODE";
+    private static final String FTP_DEFLATE_MODE = "Z";
+    private static final String CURRENT_DIRECTORY = ".";
+    private static final String PARENT_DIRECTORY = "..";
+    /**
+     * Indexed by {@link FTPFile} permission constants.
+     */
+    private static final String PERMISSION_CHARS = "rwx";
+
+    /**
+     * Count of directory children passed to {@link ListingPageConsumer} at once.
+     */
+    private static final int LISTING_PAGE_SIZE = 500;
+    private static final DefaultFTPFileEntryParserFactory LIST_PARSER_FACTORY = new DefaultFTPFileEntryParserFactory();
+
+    /**
+     * Percentile of listing reply times after which an interactive listing is sent again over another connection
+     * (the listing which reply comes first is used). May be overridden with "filebrowser.ftp.hedgedListingPercentile"
+     * system property; 0 disables hedging.
+     */
+    private static final int HEDGED_LISTING_PERCENTILE =
+            Integer.getInteger("filebrowser.ftp.hedgedListingPercentile", 95);
+    /**
+     * Count of the most recent listing reply times kept per FTP server.
+     */
+    private static final int LISTING_LATENCY_SAMPLES = 200;
+    /**
+     * Listings are not hedged until this count of listing reply times is known.
+     */
+    private static final int MIN_LISTING_LATENCY_SAMPLES = 20;
+    /**
+     * Listing reply times per FTP server (host:port).
+     */
+    private static final ConcurrentMap<String, LatencyTracker> LISTING_LATENCIES = new ConcurrentHashMap<>();
+
+    /**
+     * Whether listings and downloads of text files are transferred in MODE Z (compressed with deflate) if the server
+     * supports it. May be disabled with "filebrowser.ftp.deflate" system property.
+     */
+    private static final boolean DEFLATE_ENABLED = Boolean.parseBoolean(System.getProperty("filebrowser.ftp.deflate",
+            "true"));
+    /**
+     * Used to find compressible (text) files.
+     */
+    private static final FileTypeProvider FILE_TYPE_PROVIDER = new ExtensionBasedFileTypeProvider();
+
+    /**
+     * Whether LIST -R is tried to list whole directory tree at once while walking it. May be disabled with
+     * "filebrowser.ftp.recursiveList" system property.
+     */
+    private static final boolean RECURSIVE_LIST_ENABLED =
+            Boolean.parseBoolean(System.getProperty("filebrowser.ftp.recursiveList", "true"));
+    /**
+     * Max count of directories waiting to be listed while walking directory tree.
+     */
+    private static final int TREE_WALK_QUEUE_SIZE = 1000;
+
+    /**
+     * Max count of pending prefetch tasks; the oldest ones are dropped.
+     */
+    private static final int PREFETCH_QUEUE_SIZE = 8;
+    /**
+     * Count of connections which are never used by background tasks (prefetch, additional download segments) so
+     * user-initiated operations don't wait for them.
+     */
+    private static final int RESERVED_CONNECTIONS = 1;
+
+    /**
+     * Max count of segments a large file is downloaded in. May be overridden with "filebrowser.ftp.downloadSegments"
+     * system property.
+     */
+    private static final int DOWNLOAD_SEGMENTS = Integer.getInteger("filebrowser.ftp.downloadSegments", 3);
+    /**
+     * Min size (in bytes) of a download segment. May be overridden with "filebrowser.ftp.minDownloadSegmentSize"
+     * system property.
+     */
+    private static final long MIN_DOWNLOAD_SEGMENT_SIZE =
+            Long.getLong("filebrowser.ftp.minDownloadSegmentSize", 4 * 1024 * 1024);
+    private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Max count of segments a large file is uploaded in (if the server supports REST STREAM). May be overridden with
+     * "filebrowser.ftp.uploadSegments" system property.
+     */
+    private static final int UPLOAD_SEGMENTS = Integer.getInteger("filebrowser.ftp.uploadSegments", 3);
+    /**
+     * Min size (in bytes) of an upload segment. May be overridden with "filebrowser.ftp.minUploadSegmentSize" system
+     * property.
+     */
+    private static final long MIN_UPLOAD_SEGMENT_SIZE =
+            Long.getLong("filebrowser.ftp.minUploadSegmentSize", 4 * 1024 * 1024);
+    /**
+     * Max time (in millis) to wait for replies after an interrupted transfer is aborted.
+     */
+    private static final int ABORT_REPLY_TIMEOUT = 5 * 1000;
 
     private final String host;
     private final int port;
     private final String username;
     private final String password;
 
+    private volatile String initialDirectory;
+    private volatile Boolean mlsdSupported;
+    private volatile String systemType;
+    private volatile Boolean deflateSupported;
+    private volatile Boolean recursiveListSupported;
+    private volatile Boolean restartSupported;
+
     private final LocalCopyManager localCopyManager;
+    private final FtpConnectionPool connectionPool;
+    private final FtpListingCache listingCache;
+    private final LatencyTracker listingLatencies;
+    private final FtpTreeWalker treeWalker;
+    private final FtpUploader uploader;
 
     private final ExecutorService abortTransferService = Executors.newSingleThreadExecutor();
     private final BlockingQueue<FTPClient> usedClients = new ArrayBlockingQueue<>(50);
+    private final Set<SegmentTransport> segmentTransports =
+            Collections.newSetFromMap(new ConcurrentHashMap<SegmentTransport, Boolean>());
+
+    private final ExecutorService segmentDownloadService = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread thread = new Thread(r, "FTP segment download");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final FtpSegmentedDownloader segmentedDownloader = new FtpSegmentedDownloader(segmentDownloadService);
+
+    private final ExecutorService listingService = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread thread = new Thread(r, "FTP hedged listing");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final ThreadPoolExecutor prefetchExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(PREFETCH_QUEUE_SIZE), new ThreadFactory() {
+                @Override
+                public Thread newThread(@Nonnull Runnable r) {
+                    Thread thread = new Thread(r, "FTP prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.DiscardOldestPolicy());
 
 
     public FtpClient(@Nonnull String host, int port, @Nullable String username, @Nullable String password) {
@@ -52,105 +233,807 @@ public final class FtpClient {
         this.username = username;
         this.password = password;
         this.localCopyManager = new LocalCopyManager(host);
+        this.listingLatencies = getListingLatencies(host + ":" + port);
+        this.connectionPool = new FtpConnectionPool(new FtpConnectionPool.ConnectionFactory() {
+            @Nonnull
+            @Override
+            public InterruptibleFtpClient create() throws IOException {
+                return createClient();
+            }
+        }, FtpConnectionPool.MAX_CONNECTIONS, FtpConnectionPool.IDLE_TIMEOUT, FTP_TIMEOUT,
+                FtpConnectionPool.WARM_UP_CONNECTIONS, FtpConnectionPool.KEEP_ALIVE_INTERVAL);
+        this.listingCache = new FtpListingCache(new FtpListingCache.Lister() {
+            @Nonnull
+            @Override
+            public List<FileObject> list(@Nonnull FtpFileObject directory, @Nonnull TransferPriority priority,
+                    @Nullable ListingPageConsumer consumer) throws IOException {
+                return listFromServer(directory, priority, consumer);
+            }
+        }, FtpListingCache.TTL, FtpListingCache.MAX_STALE);
+        this.treeWalker = new FtpTreeWalker(new FtpTreeWalker.Lister() {
+            @Nonnull
+            @Override
+            public List<FileObject> list(@Nonnull FtpFileObject directory) throws IOException {
+                return listInBackground(directory);
+            }
+
+            @Override
+            public boolean listRecursively(@Nonnull FtpFileObject directory,
+                    @Nonnull FtpTreeWalker.DirectoryConsumer consumer) throws IOException {
+                return listTreeInBackground(directory, consumer);
+            }
+        }, Math.max(1, FtpConnectionPool.MAX_CONNECTIONS - RESERVED_CONNECTIONS), TREE_WALK_QUEUE_SIZE);
+        this.uploader = new FtpUploader(new UploadTransport(),
+                Math.max(1, FtpConnectionPool.MAX_CONNECTIONS - RESERVED_CONNECTIONS),
+                Math.max(1, UPLOAD_SEGMENTS), Math.max(1, MIN_UPLOAD_SEGMENT_SIZE));
     }
 
 
     public void testConnection() throws IOException {
-        FTPClient client = createClient();
+        FTPClient client = connectionPool.borrow(TransferPriority.LISTING);
+        boolean reusable = false;
         try {
             sendNoOp(client);
+            reusable = true;
         } finally {
-            disconnect(client);
+            connectionPool.release(client, reusable);
         }
     }
 
     @Nonnull
     public FileObject getInitialDirectory() throws IOException {
-        FTPClient client = createClient();
-        try {
-            return getCurrentDirectory(client);
-        } finally {
-            disconnect(client);
+        String initialDir = initialDirectory;
+        if (initialDir == null) {
+            // initial directory is remembered when the first connection is opened
+            FTPClient client = connectionPool.borrow(TransferPriority.LISTING);
+            connectionPool.release(client, true);
+            initialDir = initialDirectory;
         }
+        return new FtpFileObject(this, initialDir, null, true, localCopyManager);
+    }
+
+    /**
+     * Opens connections to FTP server in background so that the following operations don't wait for connecting
+     * and logging in.
+     */
+    public void warmUp() {
+        connectionPool.warmUp(FtpConnectionPool.WARM_UP_CONNECTIONS);
+    }
+
+    /**
+     * Closes idle connections; connections in use are closed when the operations using them are completed.
+     * Background tasks (prefetch, listing revalidation, hedged listings, segment downloads) are cancelled and their
+     * threads are stopped; this client can't be used after that.
+     */
+    public void close() {
+        cancelPrefetch();
+        prefetchExecutor.shutdownNow();
+        listingService.shutdownNow();
+        segmentDownloadService.shutdownNow();
+        // pending aborts are completed, so their connections are released
+        abortTransferService.shutdown();
+        listingCache.close();
+        connectionPool.close();
     }
 
+    /**
+     * @return count of operations of passed priority class waiting for a connection to FTP server.
+     */
+    public int getQueueDepth(@Nonnull TransferPriority priority) {
+        return connectionPool.getQueueDepth(priority);
+    }
+
+    /**
+     * @return average time in millis operations of passed priority class waited for a connection to FTP server.
+     */
+    public long getAverageWaitTime(@Nonnull TransferPriority priority) {
+        return connectionPool.getAverageWaitTime(priority);
+    }
 
-    private FileObject getCurrentDirectory(FTPClient client) throws IOException {
+    /**
+     * @return count of connections to FTP server which were found broken and replaced with new ones.
+     */
+    public long getReconnectCount() {
+        return connectionPool.getReconnectCount();
+    }
+
+
+    private static String getWorkingDirectory(FTPClient client) throws IOException {
         String currentDir = client.printWorkingDirectory();
         if (currentDir == null) {
             // can happen with some FTP servers
             currentDir = FTP_DEFAULT_PATH;
         }
-        return new FtpFileObject(this, currentDir, null, true, localCopyManager);
+        return currentDir;
     }
 
 
+    /**
+     * @return directory children; recently listed directories are returned from cache.
+     */
     @Nonnull
     List<FileObject> list(@Nonnull FtpFileObject directory) throws IOException {
-        FTPClient client = createClient();
-        try {
-            String dirPath = directory.getFullName();
+        return list(directory, null);
+    }
 
-            client.changeWorkingDirectory(dirPath);
-            FTPFile[] files = client.listFiles();
+    /**
+     * @param consumer receives directory children in pages as they are received from FTP server; cached children
+     *                 are passed in a single page.
+     * @return all directory children; recently listed directories are returned from cache.
+     */
+    @Nonnull
+    List<FileObject> list(@Nonnull FtpFileObject directory, @Nullable ListingPageConsumer consumer)
+            throws IOException {
+        cancelPrefetch();
+        return listingCache.get(directory, consumer);
+    }
 
-            List<FileObject> children = new ArrayList<>();
-            for (FTPFile file : files) {
-                String filePath = (dirPath.endsWith(FTP_PATH_SEPARATOR) ? "" : dirPath)
-                        + FTP_PATH_SEPARATOR + file.getName();
-                children.add(new FtpFileObject(this, filePath, directory, file.isDirectory(), localCopyManager));
+    /**
+     * Removes cached listings of passed directory and its subdirectories, so they are listed again on next request.
+     * @param fullPath full path of directory on FTP server.
+     */
+    public void invalidateListings(@Nonnull String fullPath) {
+        listingCache.invalidate(fullPath);
+    }
+
+    /**
+     * Lists passed directory in background to put its listing in cache, so it is opened instantly later.
+     * Prefetch gives way to user-initiated operations: it uses a connection only if one is free and not reserved
+     * for such operations, and pending prefetch tasks are dropped when user-initiated operation starts.
+     * @param directory directory to list.
+     */
+    public void prefetch(@Nonnull final FtpFileObject directory) {
+        prefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (listingCache.isFresh(directory.getFullName())) {
+                    return;
+                }
+                try {
+                    InterruptibleFtpClient client =
+                            connectionPool.tryBorrow(TransferPriority.BACKGROUND, RESERVED_CONNECTIONS);
+                    if (client == null) {
+                        LOGGER.debug("No free connection to prefetch {}", directory);
+                        return;
+                    }
+                    boolean reusable = false;
+                    try {
+                        List<FileObject> children = listFromServer(directory, client, null);
+                        reusable = true;
+                        listingCache.putIfNotFresh(directory, children);
+                    } finally {
+                        connectionPool.release(client, reusable);
+                    }
+                } catch (IOException e) {
+                    LOGGER.debug("Unable to prefetch " + directory, e);
+                }
             }
+        });
+    }
+
+    /**
+     * Lists passed directory and all its subdirectories (see {@link FtpTreeWalker}); directories are listed in
+     * parallel with background priority, so user-initiated operations are not delayed. Listings are cached.
+     * @param directory directory to walk.
+     * @param consumer receives children of each directory as a separate page; pages are passed one at a time from
+     *                 walker threads.
+     * @throws IOException if any directory can't be listed.
+     */
+    public void walkTree(@Nonnull FtpFileObject directory, @Nonnull ListingPageConsumer consumer) throws IOException {
+        treeWalker.walk(directory, consumer);
+    }
+
+    /**
+     * Uploads local file or directory (with all its contents) into passed remote directory (see
+     * {@link FtpUploader}). Files are uploaded in parallel over pooled connections with background priority, so
+     * user-initiated operations are not delayed; a large file may be split into segments uploaded concurrently.
+     * Existing remote files are overwritten.
+     * @param local local file or directory to upload.
+     * @param directory remote directory to upload to.
+     * @param listener receives upload progress.
+     * @throws IOException if any file can't be uploaded.
+     */
+    public void upload(@Nonnull Path local, @Nonnull FtpFileObject directory, @Nonnull UploadListener listener)
+            throws IOException {
+        if (!directory.isDirectory()) {
+            throw new IllegalArgumentException("Not a directory: " + directory);
+        }
+        try {
+            uploader.upload(local, directory.getFullName(), listener);
+        } finally {
+            invalidateListings(directory.getFullName());
+        }
+    }
 
+    /**
+     * @return cached directory children if listing is fresh; otherwise directory is listed with background priority.
+     */
+    @Nonnull
+    private List<FileObject> listInBackground(@Nonnull FtpFileObject directory) throws IOException {
+        if (listingCache.isFresh(directory.getFullName())) {
+            return listingCache.get(directory);
+        }
+        InterruptibleFtpClient client = connectionPool.borrow(TransferPriority.BACKGROUND);
+        boolean reusable = false;
+        try {
+            List<FileObject> children = listFromServer(directory, client, null);
+            reusable = true;
+            listingCache.putIfNotFresh(directory, children);
             return children;
         } finally {
-            disconnect(client);
+            connectionPool.release(client, reusable);
         }
     }
 
-    @Nullable
-    FileObject getParentDirectory(@Nonnull FtpFileObject fileObject) throws IOException {
-        FTPClient client = createClient();
+    /**
+     * Lists passed directory tree with LIST -R (with background priority) unless the server is known not to support
+     * it. Support is detected by section headers of subdirectories in the listing.
+     * @return false if LIST -R is not supported.
+     */
+    private boolean listTreeInBackground(@Nonnull FtpFileObject directory,
+            @Nonnull FtpTreeWalker.DirectoryConsumer consumer) throws IOException {
+        if (!RECURSIVE_LIST_ENABLED || Boolean.FALSE.equals(recursiveListSupported)) {
+            return false;
+        }
+        InterruptibleFtpClient client = connectionPool.borrow(TransferPriority.BACKGROUND);
+        boolean reusable = false;
         try {
-            client.changeWorkingDirectory(fileObject.getFullName());
-            boolean changedToParent = client.changeToParentDirectory();
-            if (!changedToParent) {
-                return null;
+            boolean supported = listTree(directory, client, consumer);
+            reusable = true;
+            if (!Objects.equals(recursiveListSupported, supported)) {
+                LOGGER.debug("LIST -R supported by {}: {}", host, supported);
+                recursiveListSupported = supported;
+            }
+            return supported;
+        } finally {
+            connectionPool.release(client, reusable);
+        }
+    }
+
+    /**
+     * Lists directory tree with LIST -R. Its output consists of sections: the first one lists passed directory,
+     * each next one starts with "path:" header and lists a subdirectory. The first section is skipped (the directory
+     * is listed already); other sections are passed to consumer (and cached) as soon as they are received.
+     * @return false if there are no sections of subdirectories (LIST -R is not supported); nothing is passed to
+     * consumer then.
+     */
+    private boolean listTree(@Nonnull FtpFileObject directory, @Nonnull InterruptibleFtpClient client,
+            @Nonnull FtpTreeWalker.DirectoryConsumer consumer) throws IOException {
+        String dirPath = directory.getFullName();
+        if (!client.changeWorkingDirectory(dirPath)) {
+            throw new IOException("Cannot change directory to " + dirPath + ": " + client.getReplyString());
+        }
+        InputStream data = openDataStream(client, FTP_LIST_COMMAND, FTP_RECURSIVE_LIST_OPTION, true, dirPath);
+        if (data == null) {
+            LOGGER.debug("LIST -R is rejected: {}", client.getReplyString());
+            return false;
+        }
+        FTPFileEntryParser parser = createListParser(client);
+
+        boolean supported = false;
+        Map<String, FtpFileObject> subdirectories = new HashMap<>();
+        boolean firstSection = true;
+        FtpFileObject section = null; // null while in the first section or in a section of unknown directory
+        List<FileObject> children = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(data, client.getControlEncoding()))) {
+            String entry;
+            while ((entry = parser.readNextEntry(reader)) != null) {
+                FTPFile file = StringUtils.isBlank(entry) ? null : parser.parseFTPEntry(entry);
+                if (file == null) {
+                    // blank lines, totals, and section headers
+                    if (entry.trim().endsWith(LIST_SECTION_HEADER_SUFFIX)) {
+                        deliverSection(section, children, consumer);
+                        String sectionPath = getSectionPath(dirPath, entry.trim());
+                        // some servers start the first section with a header too
+                        firstSection = firstSection && sectionPath.equals(dirPath);
+                        section = subdirectories.get(sectionPath);
+                        supported |= section != null;
+                        children = new ArrayList<>();
+                    }
+                    continue;
+                }
+                if (CURRENT_DIRECTORY.equals(file.getName()) || PARENT_DIRECTORY.equals(file.getName())
+                        || section == null && !firstSection) {
+                    continue;
+                }
+                FtpFileObject parent = section != null ? section : directory;
+                FtpFileObject child = new FtpFileObject(this, getChildPath(parent.getFullName(), file.getName()),
+                        parent, file.isDirectory(), localCopyManager, getAttributes(file, false),
+                        getPermissions(file));
+                if (child.isDirectory()) {
+                    subdirectories.put(child.getFullName(), child);
+                }
+                if (section != null) {
+                    children.add(child);
+                }
+            }
+        }
+        if (!client.completePendingCommand()) {
+            throw new IOException("Cannot list directory tree " + dirPath + ": " + client.getReplyString());
+        }
+        deliverSection(section, children, consumer);
+        return supported;
+    }
+
+    private void deliverSection(@Nullable FtpFileObject section, List<FileObject> children,
+            FtpTreeWalker.DirectoryConsumer consumer) {
+        if (section != null) {
+            listingCache.putIfNotFresh(section, children);
+            consumer.accept(section, Collections.unmodifiableList(children));
+        }
+    }
+
+    /**
+     * @param dirPath path of directory listed with LIST -R.
+     * @param header section header: absolute path or path relative to listed directory, followed by colon.
+     * @return absolute path of directory listed in the section.
+     */
+    private static String getSectionPath(@Nonnull String dirPath, @Nonnull String header) {
+        String path = header.substring(0, header.length() - LIST_SECTION_HEADER_SUFFIX.length()).trim();
+        if (path.startsWith(FTP_PATH_SEPARATOR)) {
+            while (path.length() > 1 && path.endsWith(FTP_PATH_SEPARATOR)) {
+                path = path.substring(0, path.length() - 1);
             }
+            return path;
+        }
+        if (path.startsWith(CURRENT_DIRECTORY + FTP_PATH_SEPARATOR)) {
+            path = path.substring(CURRENT_DIRECTORY.length() + FTP_PATH_SEPARATOR.length());
+        }
+        if (path.isEmpty() || path.equals(CURRENT_DIRECTORY)) {
+            return dirPath;
+        }
+        return getChildPath(dirPath, path);
+    }
 
-            FileObject parent = getCurrentDirectory(client);
-            boolean changedBack = client.changeWorkingDirectory(fileObject.getFullName());
-            if (!changedBack) {
-                disconnect(client);
-                throw new IOException("Directory changed to parent, cannot change back");
+    private static String getChildPath(String dirPath, String name) {
+        return (dirPath.endsWith(FTP_PATH_SEPARATOR) ? "" : dirPath) + FTP_PATH_SEPARATOR + name;
+    }
+
+    private void cancelPrefetch() {
+        prefetchExecutor.getQueue().clear();
+    }
+
+    private static LatencyTracker getListingLatencies(String server) {
+        LatencyTracker tracker = LISTING_LATENCIES.get(server);
+        if (tracker == null) {
+            LatencyTracker created = new LatencyTracker(LISTING_LATENCY_SAMPLES);
+            tracker = LISTING_LATENCIES.putIfAbsent(server, created);
+            if (tracker == null) {
+                tracker = created;
             }
+        }
+        return tracker;
+    }
 
-            return parent;
+    /**
+     * @return time in millis after which listing is sent again over another connection if FTP server doesn't reply;
+     * negative if listing shouldn't be hedged.
+     */
+    private long getHedgeDelay(TransferPriority priority) {
+        if (priority != TransferPriority.LISTING || HEDGED_LISTING_PERCENTILE <= 0
+                || listingLatencies.getSampleCount() < MIN_LISTING_LATENCY_SAMPLES) {
+            return -1;
+        }
+        return listingLatencies.getPercentile(Math.min(HEDGED_LISTING_PERCENTILE, 100));
+    }
+
+    @Nonnull
+    private List<FileObject> listFromServer(@Nonnull FtpFileObject directory, @Nonnull TransferPriority priority,
+            @Nullable ListingPageConsumer consumer) throws IOException {
+        long hedgeDelay = getHedgeDelay(priority);
+        if (hedgeDelay >= 0) {
+            return new HedgedListing(directory, consumer).run(hedgeDelay);
+        }
+
+        InterruptibleFtpClient client = connectionPool.borrow(priority);
+        boolean reusable = false;
+        try {
+            List<FileObject> children = listFromServer(directory, client, consumer);
+            reusable = true;
+            return children;
         } finally {
-            disconnect(client);
+            connectionPool.release(client, reusable);
         }
     }
 
+    @Nonnull
+    private List<FileObject> listFromServer(@Nonnull FtpFileObject directory,
+            @Nonnull InterruptibleFtpClient client, @Nullable ListingPageConsumer consumer) throws IOException {
+        return listFromServer(directory, client, consumer, null);
+    }
+
+    /**
+     * Lists directory with MLSD (or LIST if not supported). Listing is parsed while it is received, entry by entry,
+     * instead of reading the whole listing first; so children are passed to consumer in pages as soon as they are
+     * received. Time from sending MLSD (or LIST) until FTP server replies with the listing is recorded in listing
+     * latencies; if there's no reply (e.g. the attempt is cancelled), time waited until then is recorded.
+     * @param hedgedAttempt attempt of hedged listing this is; the listing is abandoned if another attempt gets reply
+     *                      first.
+     */
+    @Nonnull
+    private List<FileObject> listFromServer(@Nonnull FtpFileObject directory,
+            @Nonnull InterruptibleFtpClient client, @Nullable ListingPageConsumer consumer,
+            @Nullable HedgedListing.Attempt hedgedAttempt) throws IOException {
+        String dirPath = directory.getFullName();
+        if (!client.changeWorkingDirectory(dirPath)) {
+            throw new IOException("Cannot change directory to " + dirPath + ": " + client.getReplyString());
+        }
+
+        boolean machineListing = isMlsdSupported(client);
+        InputStream data;
+        LatencyTracker.Sample latency = listingLatencies.start();
+        try {
+            data = machineListing ? openDataStream(client, FTP_MLSD_COMMAND, null, true, dirPath) : null;
+            if (data == null) {
+                machineListing = false;
+                data = openDataStream(client, FTP_LIST_COMMAND, null, true, dirPath);
+                if (data == null) {
+                    throw new IOException("Cannot list directory " + dirPath + ": " + client.getReplyString());
+                }
+            }
+        } finally {
+            latency.stop();
+        }
+        if (hedgedAttempt != null && !hedgedAttempt.replied()) {
+            data.close();
+            throw new InterruptedIOException("Listing of " + dirPath + " got reply on another connection first");
+        }
+        FTPFileEntryParser parser = machineListing ? MLSxEntryParser.getInstance() : createListParser(client);
+
+        List<FileObject> children = new ArrayList<>();
+        List<FileObject> page = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(data, client.getControlEncoding()))) {
+            String entry;
+            while ((entry = parser.readNextEntry(reader)) != null) {
+                FTPFile file = parser.parseFTPEntry(entry);
+                if (file == null || CURRENT_DIRECTORY.equals(file.getName())
+                        || PARENT_DIRECTORY.equals(file.getName())) {
+                    continue;
+                }
+                page.add(new FtpFileObject(this, getChildPath(dirPath, file.getName()), directory, file.isDirectory(),
+                        localCopyManager, getAttributes(file, machineListing), getPermissions(file)));
+                if (page.size() >= LISTING_PAGE_SIZE) {
+                    deliverPage(page, children, consumer);
+                    page = new ArrayList<>();
+                }
+            }
+        }
+        if (!client.completePendingCommand()) {
+            throw new IOException("Cannot list directory " + dirPath + ": " + client.getReplyString());
+        }
+        deliverPage(page, children, consumer);
+        return children;
+    }
+
+    private static void deliverPage(List<FileObject> page, List<FileObject> children,
+            @Nullable ListingPageConsumer consumer) {
+        if (page.isEmpty()) {
+            return;
+        }
+        children.addAll(page);
+        if (consumer != null) {
+            consumer.accept(Collections.unmodifiableList(page));
+        }
+    }
+
+    /**
+     * @return parser of LIST output for server system type (it is requested with SYST once per FTP server); UNIX
+     * format is assumed if system type is unknown.
+     */
+    private FTPFileEntryParser createListParser(FTPClient client) throws IOException {
+        String systemType = this.systemType;
+        if (systemType == null) {
+            systemType = FTPReply.isPositiveCompletion(client.syst())
+                    ? client.getReplyString().substring(REPLY_CODE_LENGTH).trim()
+                    : FTPClientConfig.SYST_UNIX;
+            this.systemType = systemType;
+            LOGGER.debug("System type of {}: {}", host, systemType);
+        }
+        try {
+            return LIST_PARSER_FACTORY.createFileEntryParser(systemType);
+        } catch (ParserInitializationException e) {
+            LOGGER.debug("Unknown system type {}; UNIX listing format is assumed", systemType);
+            return LIST_PARSER_FACTORY.createUnixFTPEntryParser();
+        }
+    }
+
+    /**
+     * Sends passed command which requires data connection and opens the data stream. MODE Z is used if requested
+     * and supported by the server; stream mode is used otherwise.
+     * @param compress true if MODE Z should be used if possible.
+     * @param transfer description of the transfer for logging.
+     * @return data stream (inflated if MODE Z is used); null if the command is not accepted. After the data is read,
+     * the stream should be closed and {@link FTPClient#completePendingCommand()} should be called.
+     */
+    @Nullable
+    private InputStream openDataStream(@Nonnull InterruptibleFtpClient client, @Nonnull String command,
+            @Nullable String arg, boolean compress, @Nonnull String transfer) throws IOException {
+        boolean deflate = compress && isDeflateSupported(client);
+        Socket dataSocket = client.openDataConnection(command, arg, deflate);
+        if (deflate && !client.isDeflateMode()) {
+            LOGGER.debug("MODE Z is rejected by {}; stream mode is used", host);
+            deflateSupported = false;
+        }
+        if (dataSocket == null) {
+            return null;
+        }
+        return client.isDeflateMode()
+                ? new InflatingInputStream(dataSocket.getInputStream(), transfer)
+                : dataSocket.getInputStream();
+    }
+
+    /**
+     * Checks (once per FTP server) whether MODE Z is supported; FEAT command is used for this.
+     */
+    private boolean isDeflateSupported(FTPClient client) throws IOException {
+        if (!DEFLATE_ENABLED) {
+            return false;
+        }
+        Boolean supported = deflateSupported;
+        if (supported == null) {
+            supported = client.hasFeature(FTP_MODE_FEATURE, FTP_DEFLATE_MODE);
+            deflateSupported = supported;
+            LOGGER.debug("MODE Z supported by {}: {}", host, supported);
+        }
+        return supported;
+    }
+
+    /**
+     * @return true if passed file is worth to be transferred in MODE Z: text files compress well, while most of
+     * other types (images, archives) are already compressed.
+     */
+    private static boolean isCompressible(FtpFileObject file) {
+        return FILE_TYPE_PROVIDER.getType(file) instanceof TextFileType;
+    }
+
+    /**
+     * Checks (once per FTP server) whether MLSD command is supported; FEAT command is used for this.
+     */
+    private boolean isMlsdSupported(FTPClient client) throws IOException {
+        Boolean supported = mlsdSupported;
+        if (supported == null) {
+            supported = client.hasFeature(FTP_MLST_FEATURE);
+            mlsdSupported = supported;
+            LOGGER.debug("MLSD supported by {}: {}", host, supported);
+        }
+        return supported;
+    }
+
+    /**
+     * Timestamps in LIST output are not precise (and may be in server local time zone), so they are used only when
+     * received with MLSD.
+     */
+    private static FtpFileAttributes getAttributes(FTPFile file, boolean machineListing) {
+        long size = file.isFile() && file.getSize() >= 0 ? file.getSize() : FtpFileAttributes.UNKNOWN;
+        long lastModified = machineListing && file.getTimestamp() != null
+                ? file.getTimestamp().getTimeInMillis() : FtpFileAttributes.UNKNOWN;
+        return new FtpFileAttributes(size, lastModified);
+    }
+
+    /**
+     * @return permissions in <code>ls</code> format (e.g. <code>rw-r--r--</code>); null if not present in listing.
+     */
+    @Nullable
+    private static String getPermissions(FTPFile file) {
+        StringBuilder sb = new StringBuilder(9);
+        boolean anyPermission = false;
+        for (int access : new int[] {FTPFile.USER_ACCESS, FTPFile.GROUP_ACCESS, FTPFile.WORLD_ACCESS}) {
+            for (int permission : new int[] {FTPFile.READ_PERMISSION, FTPFile.WRITE_PERMISSION,
+                    FTPFile.EXECUTE_PERMISSION}) {
+                boolean has = file.hasPermission(access, permission);
+                anyPermission |= has;
+                sb.append(has ? PERMISSION_CHARS.charAt(permission) : '-');
+            }
+        }
+        return anyPermission ? sb.toString() : null;
+    }
+
+    /**
+     * Computes parent directory path from passed absolute path; no requests are sent to FTP server.
+     * @param path absolute path on FTP server.
+     * @return parent directory path; null if passed path is the root directory.
+     */
+    @Nullable
+    static String getParentPath(@Nonnull String path) {
+        String normalized = path;
+        while (normalized.length() > 1 && normalized.endsWith(FTP_PATH_SEPARATOR)) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        int lastSeparatorIndex = normalized.lastIndexOf(FTP_PATH_SEPARATOR);
+        if (normalized.equals(FTP_DEFAULT_PATH) || lastSeparatorIndex < 0) {
+            return null;
+        }
+        return lastSeparatorIndex == 0 ? FTP_DEFAULT_PATH : normalized.substring(0, lastSeparatorIndex);
+    }
+
     void retrieveFile(@Nonnull FtpFileObject file, @Nonnull OutputStream to) throws IOException {
+        retrieveFile(file, to, 0);
+    }
+
+    /**
+     * Downloads file starting from passed offset; REST command is used to skip preceding bytes.
+     * The transfer is aborted if another file download is started.
+     * @param file file to download.
+     * @param to stream to write file contents to.
+     * @param offset offset of the first byte to download.
+     * @throws IOException on any I/O errors or if the transfer is aborted.
+     */
+    void retrieveFile(@Nonnull FtpFileObject file, @Nonnull OutputStream to, long offset) throws IOException {
         String pathToRetrieve = file.getFullName();
+        cancelPrefetch();
         abortPreviousTransfers();
-        FTPClient client = createClient();
+        InterruptibleFtpClient client = connectionPool.borrow(TransferPriority.PREVIEW);
         boolean added = usedClients.offer(client);
+        boolean completed = false;
         try {
-            // note: this method is used instead of retrieveFileStream because
-            // it doesn't require keeping the control connection alive
-            boolean completed = client.retrieveFile(pathToRetrieve, to);
+            if (offset == 0 && isCompressible(file)) {
+                try (InputStream is = openDataStream(client, FTP_RETR_COMMAND, pathToRetrieve, true,
+                        pathToRetrieve)) {
+                    if (is != null) {
+                        IOUtils.copyLarge(is, to);
+                    }
+                    completed = is != null;
+                }
+                completed = completed && client.completePendingCommand();
+            } else {
+                // note: this method is used instead of retrieveFileStream because
+                // it doesn't require keeping the control connection alive
+                client.setRestartOffset(offset);
+                completed = client.retrieveFile(pathToRetrieve, to);
+            }
             if (!completed) {
                 throw new IOException("Cannot complete file transfer: " + pathToRetrieve);
             }
         } finally {
-            boolean shouldDisconnect = !added || usedClients.remove(client);
-            if (shouldDisconnect) {
-                disconnect(client);
+            // if the client was removed by abortPreviousTransfers, it is released there
+            boolean shouldRelease = !added || usedClients.remove(client);
+            if (shouldRelease) {
+                connectionPool.release(client, completed);
             }
         }
     }
 
 
+    /**
+     * Opens a stream reading the file starting from passed offset; REST command is used to skip preceding bytes.
+     * The stream holds a pooled connection until it is closed; if the stream is closed before the whole file is
+     * read the transfer is aborted, so the stream may be closed at any time.
+     * @param file file to read.
+     * @param offset offset of the first byte to read.
+     * @return stream which must be closed after use.
+     * @throws IOException on any I/O errors.
+     */
+    @Nonnull
+    InputStream retrieveFileStream(@Nonnull FtpFileObject file, long offset) throws IOException {
+        return retrieveFileStream(connectionPool.borrow(TransferPriority.PREVIEW), file, offset);
+    }
+
+    /**
+     * @param client borrowed connection; it is owned by returned stream or released if no stream is returned.
+     */
+    @Nonnull
+    private InputStream retrieveFileStream(@Nonnull InterruptibleFtpClient client, @Nonnull FtpFileObject file,
+            long offset) throws IOException {
+        String pathToRetrieve = file.getFullName();
+        try {
+            InputStream is;
+            if (offset == 0 && isCompressible(file)) {
+                is = openDataStream(client, FTP_RETR_COMMAND, pathToRetrieve, true, pathToRetrieve);
+            } else {
+                client.setRestartOffset(offset);
+                is = client.retrieveFileStream(pathToRetrieve);
+            }
+            if (is == null) {
+                throw new IOException("Cannot retrieve file " + pathToRetrieve + " from offset " + offset + ": "
+                        + client.getReplyString());
+            }
+            return new ConnectionInputStream(is, client);
+        } catch (IOException | RuntimeException e) {
+            connectionPool.release(client, false);
+            throw e;
+        }
+    }
+
+    /**
+     * @param size file size in bytes.
+     * @return true if file of passed size is large enough to be downloaded in several segments.
+     */
+    static boolean isSegmentedDownloadUseful(long size) {
+        return DOWNLOAD_SEGMENTS > 1 && size >= 2 * MIN_DOWNLOAD_SEGMENT_SIZE;
+    }
+
+    /**
+     * Downloads file splitting it into segments which are downloaded concurrently over several connections; REST
+     * command is used to start each segment transfer at its offset. Segments are written to passed file with
+     * positional writes. Only connections which are free and not reserved for other operations are used for all
+     * segments except the first one; so the file may be downloaded in fewer segments (or a single one).
+     * @param file file to download.
+     * @param size file size in bytes.
+     * @param to local file to write to; it is overwritten. If download fails (e.g. it is aborted by another
+     *           download), the file is truncated to the contents downloaded completely from its beginning.
+     * @throws IOException on any I/O errors.
+     */
+    void retrieveFileSegmented(@Nonnull FtpFileObject file, long size, @Nonnull Path to) throws IOException {
+        cancelPrefetch();
+        abortPreviousTransfers();
+        SegmentTransport transport = new SegmentTransport(file, borrowSegmentConnections(
+                Math.max(1, Math.min(DOWNLOAD_SEGMENTS, size / MIN_DOWNLOAD_SEGMENT_SIZE))));
+        LOGGER.debug("Downloading {} in {} segment(s)", file, transport.clients.size());
+        segmentTransports.add(transport);
+        try {
+            segmentedDownloader.download(transport, transport.clients.size(), size, to, file.toString());
+        } finally {
+            segmentTransports.remove(transport);
+            transport.releaseUnopened();
+        }
+    }
+
+    /**
+     * @return at least one connection; the rest ones are borrowed only if available.
+     */
+    private List<InterruptibleFtpClient> borrowSegmentConnections(long maxSegments) throws IOException {
+        List<InterruptibleFtpClient> clients = new ArrayList<>();
+        clients.add(connectionPool.borrow(TransferPriority.PREVIEW));
+        try {
+            while (clients.size() < maxSegments) {
+                InterruptibleFtpClient client =
+                        connectionPool.tryBorrow(TransferPriority.PREVIEW, RESERVED_CONNECTIONS);
+                if (client == null) {
+                    break;
+                }
+                clients.add(client);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (FTPClient client : clients) {
+                connectionPool.release(client, true);
+            }
+            throw e;
+        }
+        return clients;
+    }
+
+    /**
+     * Requests file size and modification time from the server (SIZE and MDTM commands).
+     * @param file file to get attributes of.
+     * @return file attributes; some of them may be unknown if the server doesn't support corresponding command.
+     * @throws IOException on any I/O errors.
+     */
+    @Nonnull
+    FtpFileAttributes getFileAttributes(@Nonnull FtpFileObject file) throws IOException {
+        String path = file.getFullName();
+        FTPClient client = connectionPool.borrow(TransferPriority.PREVIEW);
+        boolean reusable = false;
+        try {
+            long size = getSize(client, path);
+
+            long lastModified = FtpFileAttributes.UNKNOWN;
+            FTPFile mdtmFile = client.mdtmFile(path);
+            if (mdtmFile != null && mdtmFile.getTimestamp() != null) {
+                lastModified = mdtmFile.getTimestamp().getTimeInMillis();
+            }
+
+            reusable = true;
+            return new FtpFileAttributes(size, lastModified);
+        } finally {
+            connectionPool.release(client, reusable);
+        }
+    }
+
+    /**
+     * @return file size in bytes (SIZE command); {@link FtpFileAttributes#UNKNOWN} if not supported by the server.
+     */
+    private static long getSize(FTPClient client, String path) throws IOException {
+        if (FTPReply.isPositiveCompletion(client.sendCommand(FTP_SIZE_COMMAND, path))) {
+            try {
+                return Long.parseLong(client.getReplyString().substring(REPLY_CODE_LENGTH).trim());
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                LOGGER.debug("Unexpected SIZE reply: {}", client.getReplyString());
+            }
+        }
+        return FtpFileAttributes.UNKNOWN;
+    }
+
+
     private void sendNoOp(FTPClient client) throws IOException {
         boolean answer = client.sendNoOp();
         if (!answer) {
@@ -160,10 +1043,10 @@ public final class FtpClient {
 
 
     @Nonnull
-    private FTPClient createClient() throws IOException {
+    private InterruptibleFtpClient createClient() throws IOException {
         LOGGER.debug("Creating a new FTP client for {}", host);
 
-        FTPClient client = new FTPClient();
+        InterruptibleFtpClient client = new InterruptibleFtpClient();
         client.setConnectTimeout(FTP_TIMEOUT);
         client.connect(host, port);
         client.enterLocalPassiveMode();
@@ -177,6 +1060,9 @@ public final class FtpClient {
             }
 
             client.setFileType(FTP.BINARY_FILE_TYPE);
+            if (initialDirectory == null) {
+                initialDirectory = getWorkingDirectory(client);
+            }
         } catch (IOException e) {
             disconnect(client);
             throw e;
@@ -195,6 +1081,10 @@ public final class FtpClient {
     }
 
     private void abortPreviousTransfers() {
+        for (SegmentTransport transport : segmentTransports) {
+            LOGGER.debug("Aborting the segmented transfer of {}", transport.file);
+            transport.abort();
+        }
         if (usedClients.size() > 0) {
             abortTransferService.execute(new Runnable() {
                 @Override
@@ -206,7 +1096,7 @@ public final class FtpClient {
                             clientToAbort.abort();
                         } catch (IOException ignore) {
                         } finally {
-                            disconnect(clientToAbort);
+                            connectionPool.release(clientToAbort, false);
                         }
                     }
                 }
@@ -227,4 +1117,375 @@ public final class FtpClient {
     public LocalCopyManager getLocalCopyManager() {
         return localCopyManager;
     }
+
+
+    /**
+     * Transfers segments of a file over connections borrowed beforehand (one per segment). The transfers are
+     * aborted if another file download is started.
+     */
+    private final class SegmentTransport implements FtpSegmentedDownloader.Transport {
+        private final FtpFileObject file;
+        private final List<InterruptibleFtpClient> clients;
+        private final boolean[] opened; // guarded by this
+        private final Set<InterruptibleFtpClient> transferring = new HashSet<>(); // guarded by this
+        private boolean aborted = false; // guarded by this
+
+        private SegmentTransport(FtpFileObject file, List<InterruptibleFtpClient> clients) {
+            this.file = file;
+            this.clients = clients;
+            this.opened = new boolean[clients.size()];
+        }
+
+        @Nonnull
+        @Override
+        public InputStream open(int segment, long offset) throws IOException {
+            final InterruptibleFtpClient client = clients.get(segment);
+            synchronized (this) {
+                if (aborted) {
+                    throw new IOException("Download aborted: " + file);
+                }
+                opened[segment] = true;
+                transferring.add(client);
+            }
+            // the connection is not cancelled after the stream is closed, since it's returned to pool then
+            return new FilterInputStream(retrieveFileStream(client, file, offset)) {
+                @Override
+                public void close() throws IOException {
+                    synchronized (SegmentTransport.this) {
+                        transferring.remove(client);
+                    }
+                    super.close();
+                }
+            };
+        }
+
+        @Override
+        public synchronized void abort() {
+            aborted = true;
+            for (InterruptibleFtpClient client : transferring) {
+                client.cancel();
+            }
+            transferring.clear();
+        }
+
+        /**
+         * Returns connections of segments which are not started to pool.
+         */
+        synchronized void releaseUnopened() {
+            for (int i = 0; i < clients.size(); i++) {
+                if (!opened[i]) {
+                    opened[i] = true;
+                    connectionPool.release(clients.get(i), true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs upload operations over pooled connections with background priority.
+     */
+    private final class UploadTransport implements FtpUploader.Transport {
+        @Override
+        public void makeDirectory(@Nonnull String path) throws IOException {
+            FTPClient client = connectionPool.borrow(TransferPriority.BACKGROUND);
+            boolean reusable = false;
+            try {
+                // MKD fails if the directory exists; it is checked by changing to it then
+                if (!client.makeDirectory(path) && !client.changeWorkingDirectory(path)) {
+                    throw new IOException("Cannot create directory " + path + ": " + client.getReplyString());
+                }
+                reusable = true;
+            } finally {
+                connectionPool.release(client, reusable);
+            }
+        }
+
+        @Override
+        public void store(@Nonnull String path, long offset, @Nonnull InputStream data, @Nonnull Runnable opened)
+                throws IOException {
+            FTPClient client = connectionPool.borrow(TransferPriority.BACKGROUND);
+            boolean reusable = false;
+            try {
+                client.setRestartOffset(offset);
+                OutputStream os = client.storeFileStream(path);
+                if (os == null) {
+                    throw new IOException("Cannot store file " + path + " from offset " + offset + ": "
+                            + client.getReplyString());
+                }
+                opened.run();
+                try {
+                    IOUtils.copy(data, os, DOWNLOAD_BUFFER_SIZE);
+                } finally {
+                    os.close();
+                }
+                if (!client.completePendingCommand()) {
+                    throw new IOException("Cannot store file " + path + " from offset " + offset + ": "
+                            + client.getReplyString());
+                }
+                reusable = true;
+            } finally {
+                connectionPool.release(client, reusable);
+            }
+        }
+
+        @Override
+        public boolean isRestartSupported() throws IOException {
+            Boolean supported = restartSupported;
+            if (supported == null) {
+                FTPClient client = connectionPool.borrow(TransferPriority.BACKGROUND);
+                boolean reusable = false;
+                try {
+                    supported = client.hasFeature(FTP_REST_FEATURE, FTP_REST_STREAM);
+                    reusable = true;
+                } finally {
+                    connectionPool.release(client, reusable);
+                }
+                restartSupported = supported;
+                LOGGER.debug("REST STREAM supported by {}: {}", host, supported);
+            }
+            return supported;
+        }
+
+        @Override
+        public long getSize(@Nonnull String path) throws IOException {
+            FTPClient client = connectionPool.borrow(TransferPriority.BACKGROUND);
+            boolean reusable = false;
+            try {
+                long size = FtpClient.getSize(client, path);
+                reusable = true;
+                return size;
+            } finally {
+                connectionPool.release(client, reusable);
+            }
+        }
+    }
+
+    /**
+     * Directory listing which is sent again over another connection if FTP server doesn't reply in time. The attempt
+     * which gets reply first is used (only its pages are passed to consumer); the other one is cancelled by
+     * interrupting its thread, so its connection is closed by pool.
+     */
+    private final class HedgedListing {
+        private final FtpFileObject directory;
+        private final ListingPageConsumer consumer;
+        private final ExecutorCompletionService<List<FileObject>> completionService =
+                new ExecutorCompletionService<>(listingService);
+
+        private final List<Attempt> attempts = new ArrayList<>(); // guarded by this
+        private Attempt replied; // guarded by this
+
+        private HedgedListing(FtpFileObject directory, @Nullable ListingPageConsumer consumer) {
+            this.directory = directory;
+            this.consumer = consumer;
+        }
+
+        /**
+         * @param hedgeDelay time in millis after which the listing is sent again.
+         * @return directory children received by the attempt which got reply first.
+         */
+        List<FileObject> run(long hedgeDelay) throws IOException {
+            Attempt primary = submit(false);
+            try {
+                int running = 1;
+                Future<List<FileObject>> completed = completionService.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+                if (completed == null && submit(true) != null) {
+                    LOGGER.debug("No reply to listing of {} within {} ms; sending it again", directory, hedgeDelay);
+                    running++;
+                }
+
+                IOException failure = null;
+                while (true) {
+                    if (completed == null) {
+                        completed = completionService.take();
+                    }
+                    running--;
+                    try {
+                        return getResult(completed);
+                    } catch (IOException e) {
+                        // prefer failure of the attempt which got reply, then of the primary one
+                        Attempt preferred = getReplied() != null ? getReplied() : primary;
+                        if (failure == null || completed == preferred.future) {
+                            failure = e;
+                        }
+                    }
+                    if (running == 0) {
+                        throw failure;
+                    }
+                    completed = null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while listing " + directory);
+            } finally {
+                cancelAll();
+            }
+        }
+
+        /**
+         * @param hedge true for the repeated attempt; it doesn't wait for a connection.
+         * @return submitted attempt; null if an attempt has already got reply.
+         */
+        @Nullable
+        private synchronized Attempt submit(boolean hedge) {
+            if (replied != null) {
+                return null;
+            }
+            Attempt attempt = new Attempt(hedge);
+            attempt.future = completionService.submit(attempt);
+            attempts.add(attempt);
+            return attempt;
+        }
+
+        /**
+         * @return true if passed attempt got reply first and should continue; false if it should be abandoned.
+         */
+        private synchronized boolean replied(Attempt attempt) {
+            if (replied == null) {
+                replied = attempt;
+                cancelAll();
+            }
+            return replied == attempt;
+        }
+
+        @Nullable
+        private synchronized Attempt getReplied() {
+            return replied;
+        }
+
+        /**
+         * Cancels all attempts except the one which got reply.
+         */
+        private synchronized void cancelAll() {
+            for (Attempt attempt : attempts) {
+                if (attempt != replied) {
+                    attempt.future.cancel(true);
+                }
+            }
+        }
+
+        private List<FileObject> getResult(Future<List<FileObject>> attempt) throws IOException,
+                InterruptedException {
+            try {
+                return attempt.get();
+            } catch (CancellationException e) {
+                throw new InterruptedIOException("Listing of " + directory + " is cancelled");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+
+
+        private final class Attempt implements Callable<List<FileObject>> {
+            private final boolean hedge;
+            private Future<List<FileObject>> future; // guarded by HedgedListing.this
+
+            private Attempt(boolean hedge) {
+                this.hedge = hedge;
+            }
+
+            @Override
+            public List<FileObject> call() throws IOException {
+                InterruptibleFtpClient client = hedge
+                        ? connectionPool.tryBorrow(TransferPriority.LISTING, 0)
+                        : connectionPool.borrow(TransferPriority.LISTING);
+                if (client == null) {
+                    throw new IOException("No free connection to send listing of " + directory + " again");
+                }
+                boolean reusable = false;
+                try {
+                    List<FileObject> children = listFromServer(directory, client, consumer, this);
+                    reusable = true;
+                    return children;
+                } finally {
+                    connectionPool.release(client, reusable);
+                }
+            }
+
+            /**
+             * Called when FTP server replies to this attempt.
+             * @return true if this attempt got reply first and should continue; false if it should be abandoned.
+             */
+            boolean replied() {
+                return HedgedListing.this.replied(this);
+            }
+        }
+    }
+
+    /**
+     * Data stream of a transfer which holds the connection. The connection is returned to pool on close; if the
+     * stream is not read to the end, the transfer is aborted with ABOR first. The connection is closed if its state
+     * is unknown after that.
+     */
+    private final class ConnectionInputStream extends FilterInputStream {
+        private final FTPClient client;
+        private boolean endReached = false;
+        private boolean closed = false;
+
+        private ConnectionInputStream(InputStream in, FTPClient client) {
+            super(in);
+            this.client = client;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                endReached = true;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1) {
+                endReached = true;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            boolean reusable = false;
+            try {
+                super.close();
+                reusable = endReached ? client.completePendingCommand() : abortTransfer();
+            } finally {
+                connectionPool.release(client, reusable);
+            }
+        }
+
+        /**
+         * Sends ABOR after the data connection is closed. Two replies are expected then: the one to the interrupted
+         * transfer command (426 or 226 if it completed anyway) and the one to ABOR.
+         * @return true if both replies are received and the connection may be reused.
+         */
+        private boolean abortTransfer() {
+            try {
+                int soTimeout = client.getSoTimeout();
+                client.setSoTimeout(ABORT_REPLY_TIMEOUT);
+                try {
+                    client.abort();
+                    return FTPReply.isPositiveCompletion(client.getReply());
+                } finally {
+                    client.setSoTimeout(soTimeout);
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Unable to abort the transfer cleanly", e);
+                return false;
+            }
+        }
+    }
 }
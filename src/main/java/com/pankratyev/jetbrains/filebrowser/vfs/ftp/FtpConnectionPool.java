@@ -0,0 +1,667 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of logged-in connections to a single FTP server.
+ * Connections idle for a while are checked with NOOP before reuse; broken ones are replaced with new connections
+ * transparently. Connections idle for too long are closed in background, except for min idle count of most recently
+ * used ones: these are kept alive with periodic NOOPs so that the server doesn't drop them. No more than max
+ * connections (both idle and borrowed) are opened at once; if all of them are borrowed
+ * {@link #borrow(TransferPriority)} waits until one is released.
+ * <p>
+ * Waiting operations are served in {@link TransferPriority} order. If an operation of a foreground class has to
+ * wait, an operation of {@link TransferPriority#BACKGROUND} class is cancelled and its connection is closed to give
+ * way.
+ * <p>
+ * Borrowed connections are bound to the borrowing thread: if it is interrupted (e.g. a {@code SwingWorker} is
+ * cancelled), the connection is {@link InterruptibleFtpClient#cancel() cancelled} within milliseconds, since
+ * blocking socket operations ignore thread interruption.
+ */
+@ThreadSafe
+final class FtpConnectionPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FtpConnectionPool.class);
+
+    /**
+     * Default max count of connections opened to one FTP server. May be overridden with
+     * "filebrowser.ftp.maxConnections" system property.
+     */
+    static final int MAX_CONNECTIONS = Integer.getInteger("filebrowser.ftp.maxConnections", 4);
+
+    /**
+     * Default time (in millis) after which an idle connection is closed. May be overridden with
+     * "filebrowser.ftp.idleTimeout" system property.
+     */
+    static final long IDLE_TIMEOUT = Long.getLong("filebrowser.ftp.idleTimeout", 60 * 1000);
+
+    /**
+     * Default count of connections opened in advance when connecting to FTP server and then kept alive while idle.
+     * May be overridden with "filebrowser.ftp.warmUpConnections" system property.
+     */
+    static final int WARM_UP_CONNECTIONS = Integer.getInteger("filebrowser.ftp.warmUpConnections", 2);
+
+    /**
+     * Default interval (in millis) of sending NOOP over idle connections which are kept alive. May be overridden with
+     * "filebrowser.ftp.keepAliveInterval" system property.
+     */
+    static final long KEEP_ALIVE_INTERVAL = Long.getLong("filebrowser.ftp.keepAliveInterval", 30 * 1000);
+
+    /**
+     * Connection not checked for longer than this (in millis) is checked with NOOP before it is reused.
+     */
+    private static final long HEALTH_CHECK_IDLE_TIME = 5 * 1000;
+
+    /**
+     * Interval (in millis) of checking whether threads which borrowed connections are interrupted.
+     */
+    private static final long INTERRUPTION_CHECK_INTERVAL = 20;
+
+    private static final ScheduledExecutorService CANCELLATION_SERVICE =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@Nonnull Runnable r) {
+                    Thread thread = new Thread(r, "FTP operation cancellation");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final ScheduledExecutorService IDLE_EVICTION_SERVICE =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@Nonnull Runnable r) {
+                    Thread thread = new Thread(r, "FTP idle connection eviction");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final ExecutorService WARM_UP_SERVICE = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread thread = new Thread(r, "FTP connection warm-up");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Opens new logged-in connections.
+     */
+    interface ConnectionFactory {
+        @Nonnull
+        InterruptibleFtpClient create() throws IOException;
+    }
+
+    private final ConnectionFactory connectionFactory;
+    private final int maxConnections;
+    private final long idleTimeout;
+    private final long borrowTimeout;
+    private final int minIdle;
+    private final long keepAliveInterval;
+    private final ScheduledFuture<?> idleEvictionFuture;
+    private final ScheduledFuture<?> keepAliveFuture;
+
+    /**
+     * Idle connections, most recently used first.
+     */
+    private final Deque<IdleConnection> idleConnections = new ArrayDeque<>(); // guarded by this
+    private int openedConnections = 0; // guarded by this; both idle and borrowed
+    private long reconnectCount = 0; // guarded by this
+    private boolean closed = false; // guarded by this
+
+    private final Map<FTPClient, BorrowedConnection> borrowedConnections = new IdentityHashMap<>(); // guarded by this
+    /**
+     * Checks whether borrowing threads are interrupted; scheduled only while any connections are borrowed.
+     */
+    private ScheduledFuture<?> interruptionCheckFuture = null; // guarded by this
+
+    // per priority class statistics; guarded by this
+    private final int[] waitingCounts = new int[TransferPriority.values().length];
+    private final long[] borrowCounts = new long[TransferPriority.values().length];
+    private final long[] totalWaitTimes = new long[TransferPriority.values().length];
+
+    /**
+     * @param connectionFactory used to open new connections.
+     * @param maxConnections max count of opened connections.
+     * @param idleTimeout time in millis after which an idle connection is closed.
+     * @param borrowTimeout max time in millis to wait for a connection if all of them are borrowed.
+     */
+    FtpConnectionPool(@Nonnull ConnectionFactory connectionFactory, int maxConnections, long idleTimeout,
+            long borrowTimeout) {
+        this(connectionFactory, maxConnections, idleTimeout, borrowTimeout, 0, KEEP_ALIVE_INTERVAL);
+    }
+
+    /**
+     * @param connectionFactory used to open new connections.
+     * @param maxConnections max count of opened connections.
+     * @param idleTimeout time in millis after which an idle connection is closed.
+     * @param borrowTimeout max time in millis to wait for a connection if all of them are borrowed.
+     * @param minIdle count of most recently used idle connections which are not closed but kept alive.
+     * @param keepAliveInterval interval in millis of sending NOOP over idle connections which are kept alive.
+     */
+    FtpConnectionPool(@Nonnull ConnectionFactory connectionFactory, int maxConnections, long idleTimeout,
+            long borrowTimeout, int minIdle, long keepAliveInterval) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("Max connections count must be positive: " + maxConnections);
+        }
+        this.connectionFactory = Objects.requireNonNull(connectionFactory);
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+        this.borrowTimeout = borrowTimeout;
+        this.minIdle = Math.max(0, Math.min(minIdle, maxConnections));
+        this.keepAliveInterval = keepAliveInterval;
+        this.idleEvictionFuture = IDLE_EVICTION_SERVICE.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle(System.currentTimeMillis());
+            }
+        }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+        this.keepAliveFuture = IDLE_EVICTION_SERVICE.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                keepAlive(System.currentTimeMillis());
+            }
+        }, keepAliveInterval, keepAliveInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param priority priority class of operation to use the connection for.
+     * @return a healthy idle connection or a new one. It must be returned with {@link #release(FTPClient, boolean)}.
+     * @throws IOException if connection can't be opened or all connections are borrowed for too long.
+     * @throws InterruptedIOException if current thread is interrupted.
+     */
+    @Nonnull
+    InterruptibleFtpClient borrow(@Nonnull TransferPriority priority) throws IOException {
+        checkNotInterrupted();
+        long startTime = System.currentTimeMillis();
+        while (true) {
+            IdleConnection idle;
+            synchronized (this) {
+                waitingCounts[priority.ordinal()]++;
+                try {
+                    long waitUntil = System.currentTimeMillis() + borrowTimeout;
+                    while (!closed && !canBorrow(priority)) {
+                        preemptBackgroundTransfer();
+                        long timeToWait = waitUntil - System.currentTimeMillis();
+                        if (timeToWait <= 0) {
+                            throw new IOException("Timed out waiting for a free FTP connection");
+                        }
+                        try {
+                            wait(timeToWait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting for a free FTP connection");
+                        }
+                    }
+                } finally {
+                    waitingCounts[priority.ordinal()]--;
+                    notifyAll(); // waiters of lower priority classes may proceed
+                }
+                if (closed) {
+                    throw new IOException("Connection pool is closed");
+                }
+                idle = take(priority);
+            }
+
+            InterruptibleFtpClient client = openOrCheck(idle);
+            if (client != null) {
+                borrowed(client, priority, System.currentTimeMillis() - startTime);
+                return client;
+            }
+        }
+    }
+
+    /**
+     * Borrows a connection only if it is available without waiting and without using the reserved ones; used for
+     * background tasks which should not delay user-initiated operations.
+     * @param priority priority class of operation to use the connection for.
+     * @param reservedConnections count of connections which should be left for other operations.
+     * @return a healthy idle connection or a new one; null if there's no available connection or other operations
+     * are waiting for connections. It must be returned with {@link #release(FTPClient, boolean)}.
+     * @throws IOException if connection can't be opened.
+     * @throws InterruptedIOException if current thread is interrupted.
+     */
+    @Nullable
+    InterruptibleFtpClient tryBorrow(@Nonnull TransferPriority priority, int reservedConnections) throws IOException {
+        checkNotInterrupted();
+        while (true) {
+            IdleConnection idle;
+            synchronized (this) {
+                int availableConnections = idleConnections.size() + maxConnections - openedConnections;
+                if (closed || availableConnections <= reservedConnections || hasWaiting()) {
+                    return null;
+                }
+                idle = take(priority);
+            }
+
+            InterruptibleFtpClient client = openOrCheck(idle);
+            if (client != null) {
+                borrowed(client, priority, 0);
+                return client;
+            }
+        }
+    }
+
+    /**
+     * Opens new connections in parallel (in background) until passed count of connections is opened; they are added
+     * to pool as idle ones. Errors are logged only: the connections will be opened on demand then.
+     * @param count count of connections to be opened; limited by max connections.
+     */
+    void warmUp(int count) {
+        int toOpen;
+        synchronized (this) {
+            toOpen = closed ? 0 : Math.min(count, maxConnections) - openedConnections;
+            if (toOpen > 0) {
+                openedConnections += toOpen;
+            }
+        }
+
+        for (int i = 0; i < toOpen; i++) {
+            WARM_UP_SERVICE.execute(new Runnable() {
+                @Override
+                public void run() {
+                    InterruptibleFtpClient client;
+                    try {
+                        client = connectionFactory.create();
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.debug("Unable to open FTP connection in advance", e);
+                        connectionClosed();
+                        return;
+                    }
+                    synchronized (FtpConnectionPool.this) {
+                        if (!closed) {
+                            long now = System.currentTimeMillis();
+                            // least recently used, so that it is evicted first
+                            idleConnections.addLast(new IdleConnection(client, now, now));
+                            FtpConnectionPool.this.notifyAll();
+                            return;
+                        }
+                    }
+                    discard(client);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return count of opened connections which were found broken (while idle) and so were closed.
+     */
+    synchronized long getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /**
+     * @return count of operations of passed priority class waiting for a connection.
+     */
+    synchronized int getQueueDepth(@Nonnull TransferPriority priority) {
+        return waitingCounts[priority.ordinal()];
+    }
+
+    /**
+     * @return average time in millis operations of passed priority class waited for a connection.
+     */
+    synchronized long getAverageWaitTime(@Nonnull TransferPriority priority) {
+        long borrowCount = borrowCounts[priority.ordinal()];
+        return borrowCount == 0 ? 0 : totalWaitTimes[priority.ordinal()] / borrowCount;
+    }
+
+    /**
+     * @return true if connection may be borrowed for operation of passed priority class right now: a connection is
+     * available and no operations of higher priority classes are waiting.
+     */
+    private boolean canBorrow(TransferPriority priority) {
+        if (idleConnections.isEmpty() && openedConnections >= maxConnections) {
+            return false;
+        }
+        for (int i = 0; i < priority.ordinal(); i++) {
+            if (waitingCounts[i] > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if any operations are waiting for a connection.
+     */
+    private boolean hasWaiting() {
+        for (int waitingCount : waitingCounts) {
+            if (waitingCount > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return an idle connection; null if a new connection should be opened (it is already counted as opened).
+     */
+    @Nullable
+    private IdleConnection take(TransferPriority priority) {
+        IdleConnection idle = idleConnections.pollFirst();
+        if (idle == null) {
+            openedConnections++;
+        }
+        return idle;
+    }
+
+    /**
+     * @param idle taken idle connection; null if a new one should be opened.
+     * @return opened connection or passed idle one if it is healthy; null if idle connection is broken.
+     */
+    @Nullable
+    private InterruptibleFtpClient openOrCheck(@Nullable IdleConnection idle) throws IOException {
+        if (idle == null) {
+            try {
+                return connectionFactory.create();
+            } catch (IOException | RuntimeException e) {
+                connectionClosed();
+                throw e;
+            }
+        }
+        if (isHealthy(idle)) {
+            return idle.client;
+        }
+        LOGGER.debug("Idle FTP connection is broken and will be replaced");
+        discardBroken(idle.client);
+        return null;
+    }
+
+    /**
+     * Binds borrowed connection to current thread and records statistics.
+     */
+    private synchronized void borrowed(InterruptibleFtpClient client, TransferPriority priority, long waitTime) {
+        borrowedConnections.put(client, new BorrowedConnection(client, Thread.currentThread(), priority));
+        borrowCounts[priority.ordinal()]++;
+        totalWaitTimes[priority.ordinal()] += waitTime;
+        if (interruptionCheckFuture == null && !closed) {
+            interruptionCheckFuture = CANCELLATION_SERVICE.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    cancelInterrupted();
+                }
+            }, INTERRUPTION_CHECK_INTERVAL, INTERRUPTION_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops checking borrowing threads for interruption; called when no connections are borrowed or pool is closed.
+     */
+    private synchronized void stopInterruptionCheck() {
+        if (interruptionCheckFuture != null) {
+            interruptionCheckFuture.cancel(false);
+            interruptionCheckFuture = null;
+        }
+    }
+
+    /**
+     * @return true if borrowing threads are being checked for interruption.
+     */
+    synchronized boolean isInterruptionCheckScheduled() {
+        return interruptionCheckFuture != null;
+    }
+
+    private static void checkNotInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Interrupted before borrowing FTP connection");
+        }
+    }
+
+    /**
+     * Cancels an operation of background priority class unless enough operations are already cancelled for
+     * waiting operations of other classes.
+     */
+    private void preemptBackgroundTransfer() {
+        int foregroundWaiting = 0;
+        for (TransferPriority priority : TransferPriority.values()) {
+            if (priority != TransferPriority.BACKGROUND) {
+                foregroundWaiting += waitingCounts[priority.ordinal()];
+            }
+        }
+
+        int cancelledInBackground = 0;
+        BorrowedConnection toCancel = null;
+        for (BorrowedConnection borrowed : borrowedConnections.values()) {
+            if (borrowed.priority == TransferPriority.BACKGROUND) {
+                if (borrowed.cancelled) {
+                    cancelledInBackground++;
+                } else if (toCancel == null) {
+                    toCancel = borrowed;
+                }
+            }
+        }
+        if (toCancel != null && cancelledInBackground < foregroundWaiting) {
+            LOGGER.debug("Cancelling background FTP operation");
+            cancel(toCancel);
+        }
+    }
+
+    /**
+     * Cancels operations on connections which borrowing threads are interrupted.
+     */
+    private synchronized void cancelInterrupted() {
+        for (BorrowedConnection borrowed : borrowedConnections.values()) {
+            if (!borrowed.cancelled && borrowed.owner.isInterrupted()) {
+                LOGGER.debug("Cancelling FTP operation of interrupted thread {}", borrowed.owner.getName());
+                cancel(borrowed);
+            }
+        }
+    }
+
+    private void cancel(final BorrowedConnection borrowed) {
+        borrowed.cancelled = true;
+        CANCELLATION_SERVICE.execute(new Runnable() {
+            @Override
+            public void run() {
+                borrowed.client.cancel();
+            }
+        });
+    }
+
+    /**
+     * Returns borrowed connection to pool.
+     * @param client borrowed connection.
+     * @param reusable false if connection state is unknown (e.g. an I/O error occurred or a transfer was
+     *                 interrupted); such connection is closed. Cancelled connections are closed too.
+     */
+    void release(@Nonnull FTPClient client, boolean reusable) {
+        synchronized (this) {
+            BorrowedConnection borrowed = borrowedConnections.remove(client);
+            if (borrowedConnections.isEmpty()) {
+                stopInterruptionCheck();
+            }
+            if (reusable && borrowed != null && !borrowed.cancelled && !closed && client.isConnected()) {
+                long now = System.currentTimeMillis();
+                idleConnections.addFirst(new IdleConnection(borrowed.client, now, now));
+                notifyAll();
+                return;
+            }
+        }
+        discard(client);
+    }
+
+    /**
+     * Closes all idle connections; connections released after this call are closed too.
+     */
+    void close() {
+        List<IdleConnection> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<>(idleConnections);
+            idleConnections.clear();
+            stopInterruptionCheck();
+            notifyAll();
+        }
+        idleEvictionFuture.cancel(false);
+        keepAliveFuture.cancel(false);
+        for (IdleConnection idle : toClose) {
+            discard(idle.client);
+        }
+    }
+
+    /**
+     * Closes connections which are idle since before (now - idleTimeout), except for min idle count of most recently
+     * used ones.
+     */
+    void evictIdle(long now) {
+        List<IdleConnection> toClose = new ArrayList<>();
+        synchronized (this) {
+            Iterator<IdleConnection> it = idleConnections.descendingIterator();
+            while (it.hasNext() && idleConnections.size() > minIdle) {
+                IdleConnection idle = it.next();
+                if (now - idle.idleSince < idleTimeout) {
+                    break; // the rest are used more recently
+                }
+                it.remove();
+                toClose.add(idle);
+            }
+        }
+        for (IdleConnection idle : toClose) {
+            LOGGER.debug("Closing idle FTP connection");
+            discard(idle.client);
+        }
+    }
+
+    /**
+     * Sends NOOP over idle connections not checked since before (now - keepAliveInterval). Connections are taken
+     * from pool while being checked; broken ones are closed.
+     */
+    void keepAlive(long now) {
+        List<IdleConnection> toCheck = new ArrayList<>();
+        synchronized (this) {
+            Iterator<IdleConnection> it = idleConnections.iterator();
+            while (it.hasNext()) {
+                IdleConnection idle = it.next();
+                if (now - idle.checkedAt >= keepAliveInterval) {
+                    it.remove();
+                    toCheck.add(idle);
+                }
+            }
+        }
+
+        for (IdleConnection idle : toCheck) {
+            boolean alive;
+            try {
+                alive = idle.client.sendNoOp();
+            } catch (IOException e) {
+                alive = false;
+            }
+            if (!alive) {
+                LOGGER.debug("Idle FTP connection is broken and will be closed");
+                discardBroken(idle.client);
+                continue;
+            }
+            synchronized (this) {
+                if (!closed) {
+                    addIdle(new IdleConnection(idle.client, idle.idleSince, System.currentTimeMillis()));
+                    continue;
+                }
+            }
+            discard(idle.client);
+        }
+    }
+
+    /**
+     * Adds idle connection keeping connections ordered by the time they became idle.
+     */
+    private void addIdle(IdleConnection idle) {
+        Deque<IdleConnection> usedLater = new ArrayDeque<>();
+        while (!idleConnections.isEmpty() && idleConnections.peekFirst().idleSince > idle.idleSince) {
+            usedLater.addFirst(idleConnections.pollFirst());
+        }
+        idleConnections.addFirst(idle);
+        for (IdleConnection later : usedLater) {
+            idleConnections.addFirst(later);
+        }
+        notifyAll();
+    }
+
+    synchronized int getOpenedConnectionsCount() {
+        return openedConnections;
+    }
+
+    private boolean isHealthy(IdleConnection idle) {
+        if (!idle.client.isConnected()) {
+            return false;
+        }
+        if (System.currentTimeMillis() - idle.checkedAt < HEALTH_CHECK_IDLE_TIME) {
+            return true;
+        }
+        try {
+            return idle.client.sendNoOp();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void discard(FTPClient client) {
+        try {
+            client.disconnect();
+        } catch (IOException e) {
+            LOGGER.warn("An error occurred while closing FTP connection", e);
+        } finally {
+            connectionClosed();
+        }
+    }
+
+    private void discardBroken(FTPClient client) {
+        synchronized (this) {
+            reconnectCount++;
+        }
+        discard(client);
+    }
+
+    private synchronized void connectionClosed() {
+        openedConnections--;
+        notifyAll();
+    }
+
+
+    private static final class IdleConnection {
+        private final InterruptibleFtpClient client;
+        private final long idleSince;
+        private final long checkedAt;
+
+        private IdleConnection(InterruptibleFtpClient client, long idleSince, long checkedAt) {
+            this.client = client;
+            this.idleSince = idleSince;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    private static final class BorrowedConnection {
+        private final InterruptibleFtpClient client;
+        private final Thread owner;
+        private final TransferPriority priority;
+        private boolean cancelled = false; // guarded by pool
+
+        private BorrowedConnection(InterruptibleFtpClient client, Thread owner, TransferPriority priority) {
+            this.client = client;
+            this.owner = owner;
+            this.priority = priority;
+        }
+    }
+}
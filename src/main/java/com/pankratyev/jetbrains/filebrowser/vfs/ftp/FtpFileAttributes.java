@@ -0,0 +1,61 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+/**
+ * Attributes of a file located on FTP server.
+ */
+public final class FtpFileAttributes {
+    /**
+     * Value used for unknown size or modification time.
+     */
+    public static final long UNKNOWN = -1;
+
+    private final long size;
+    private final long lastModified;
+
+    FtpFileAttributes(long size, long lastModified) {
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return file size in bytes or {@link #UNKNOWN}.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return file modification time in milliseconds since epoch or {@link #UNKNOWN}.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        FtpFileAttributes that = (FtpFileAttributes) o;
+        return size == that.size && lastModified == that.lastModified;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (size ^ (size >>> 32));
+        result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "FtpFileAttributes{" +
+                "size=" + size +
+                ", lastModified=" + lastModified +
+                '}';
+    }
+}
@@ -2,13 +2,17 @@ package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
 
 import com.pankratyev.jetbrains.filebrowser.vfs.AbstractFileObject;
 import com.pankratyev.jetbrains.filebrowser.vfs.FileObject;
+import com.pankratyev.jetbrains.filebrowser.vfs.PersistentCache;
+import com.pankratyev.jetbrains.filebrowser.vfs.SeekableSource;
 import com.pankratyev.jetbrains.filebrowser.vfs.zip.ZipUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -26,6 +30,8 @@ public final class FtpFileObject extends AbstractFileObject {
 
     private final FtpClient client;
     private final LocalCopyManager localCopyManager;
+    private final FtpFileAttributes listedAttributes;
+    private final String permissions;
 
     /**
      * @param client initialized FTP client with established connection.
@@ -36,25 +42,45 @@ public final class FtpFileObject extends AbstractFileObject {
      */
     FtpFileObject(@Nonnull FtpClient client, String absolutePath, FileObject parent, boolean isDirectory,
             @Nonnull LocalCopyManager localCopyManager) {
+        this(client, absolutePath, parent, isDirectory, localCopyManager, null, null);
+    }
+
+    /**
+     * @param client initialized FTP client with established connection.
+     * @param absolutePath absolute path to this file/directory on FTP server.
+     * @param parent parent directory in FTP server. May be null in which case it will be lazy-computed.
+     * @param isDirectory whether this {@link FileObject} is a directory.
+     * @param localCopyManager local copy manager for target host.
+     * @param listedAttributes attributes received with directory listing; null if unknown.
+     * @param permissions permissions received with directory listing; null if unknown.
+     */
+    FtpFileObject(@Nonnull FtpClient client, String absolutePath, FileObject parent, boolean isDirectory,
+            @Nonnull LocalCopyManager localCopyManager, @Nullable FtpFileAttributes listedAttributes,
+            @Nullable String permissions) {
         super(absolutePath, parent, isDirectory);
         this.client = Objects.requireNonNull(client);
         this.localCopyManager = Objects.requireNonNull(localCopyManager);
+        this.listedAttributes = listedAttributes;
+        this.permissions = permissions;
     }
 
 
     @Override
     public boolean hasParent() {
-        return true;
+        return FtpClient.getParentPath(getFullName()) != null;
     }
 
+    /**
+     * Parent is computed from the path of this file, so this method never sends requests to FTP server and may be
+     * called from EDT.
+     */
     @Nullable
     @Override
     public FileObject getParent() {
         if (super.getParent() == null) {
-            try {
-                setParent(client.getParentDirectory(this));
-            } catch (IOException e) {
-                LOGGER.warn("Cannot get the parent of FTP file object", e);
+            String parentPath = FtpClient.getParentPath(getFullName());
+            if (parentPath != null) {
+                setParent(new FtpFileObject(client, parentPath, null, true, localCopyManager));
             }
         }
         return super.getParent();
@@ -66,10 +92,40 @@ public final class FtpFileObject extends AbstractFileObject {
         return client.list(this);
     }
 
+    /**
+     * Lists children of this directory; unlike {@link #getChildren()} it passes children to consumer in pages while
+     * they are received from FTP server, so large directories may be displayed progressively.
+     * @param consumer receives children pages in the calling thread.
+     * @return all children of this directory.
+     * @throws IOException on any I/O errors.
+     */
+    @Nonnull
+    public List<FileObject> listChildren(@Nonnull ListingPageConsumer consumer) throws IOException {
+        if (!isDirectory()) {
+            throw new IllegalStateException("Not a directory: " + this);
+        }
+        return client.list(this, Objects.requireNonNull(consumer));
+    }
+
+    /**
+     * Lists this directory and all its subdirectories; see {@link FtpClient#walkTree(FtpFileObject,
+     * ListingPageConsumer)}.
+     * @param consumer receives children of each directory as a separate page (from walker threads).
+     * @throws IOException on any I/O errors.
+     */
+    public void walkTree(@Nonnull ListingPageConsumer consumer) throws IOException {
+        if (!isDirectory()) {
+            throw new IllegalStateException("Not a directory: " + this);
+        }
+        client.walkTree(this, Objects.requireNonNull(consumer));
+    }
+
+    /**
+     * Archive contents are listed without downloading the archive: only its central directory is transferred.
+     */
     @Nonnull
     @Override
     protected List<FileObject> getZipChildren() throws IOException {
-        getOrCreateLocalCopy();
         return ZipUtils.getZipArchiveTopLevelChildren(this);
     }
 
@@ -84,30 +140,87 @@ public final class FtpFileObject extends AbstractFileObject {
         return new BufferedInputStream(Files.newInputStream(localCopy));
     }
 
+    /**
+     * If there's no local copy of this file, the beginning of the file is streamed from FTP server; the transfer is
+     * aborted when the stream is closed, so only a small part of a large file is downloaded.
+     */
+    @Nullable
+    @Override
+    public InputStream getHeadInputStream(long maxLength) throws IOException {
+        if (isDirectory()) {
+            return null;
+        }
+
+        Path localCopy = localCopyManager.getLocalCopy(this);
+        InputStream is = localCopy != null
+                ? Files.newInputStream(localCopy)
+                : client.retrieveFileStream(this, 0);
+        return new BufferedInputStream(new BoundedInputStream(is, maxLength));
+    }
+
+    /**
+     * @return existing local copy of this file; if none present it is downloaded from FTP server.
+     * @throws IOException on any I/O errors.
+     */
     @Nonnull
-    private Path getOrCreateLocalCopy() throws IOException {
+    public Path getOrCreateLocalCopy() throws IOException {
         Path localCopy = localCopyManager.getLocalCopy(this);
         if (localCopy != null) {
             return localCopy;
         }
 
-        try (OutputStream localCopyOs = localCopyManager.getLocalCopyOutputStream(this)) {
-            if (localCopyOs == null) {
-                throw new IOException("Unable to store a local copy of " + this);
+        final FtpFileAttributes attributes = getAttributes();
+        PersistentCache persistentCache = PersistentCache.getInstance();
+        if (persistentCache != null) {
+            String contentKey = getContentKey(attributes);
+            if (contentKey != null) {
+                // note: interrupted loads to persistent cache are not resumed, since their temp files are deleted
+                Path cached = persistentCache.getOrLoad(contentKey, new PersistentCache.FileLoader() {
+                    @Override
+                    public void load(@Nonnull Path file) throws IOException {
+                        if (FtpClient.isSegmentedDownloadUseful(attributes.getSize())) {
+                            client.retrieveFileSegmented(FtpFileObject.this, attributes.getSize(), file);
+                        } else {
+                            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(file))) {
+                                client.retrieveFile(FtpFileObject.this, os);
+                            }
+                        }
+                    }
+                });
+                return localCopyManager.storeLocalCopy(this, cached, attributes);
             }
+        }
 
-            LOGGER.debug("Local copy will be stored for {}", this);
-            client.retrieveFile(this, localCopyOs);
+        long resumableLength = localCopyManager.getResumableLength(this, attributes);
+        if (resumableLength == 0 && attributes.getSize() != FtpFileAttributes.UNKNOWN
+                && FtpClient.isSegmentedDownloadUseful(attributes.getSize())) {
+            try {
+                client.retrieveFileSegmented(this, attributes.getSize(), localCopyManager.getPartialCopyPath(this));
+            } catch (IOException e) {
+                // contents downloaded from the beginning are kept, so the download is resumed in a single stream
+                localCopyManager.keepPartialCopy(this, attributes);
+                throw e;
+            }
+            return localCopyManager.commitPartialCopy(this, attributes);
+        }
 
-            localCopy =  localCopyManager.getLocalCopy(this);
-            if (localCopy == null) {
-                throw new IOException("Local copy not found for " + this);
+        try (OutputStream os = localCopyManager.getPartialCopyOutputStream(this, attributes, resumableLength)) {
+            if (resumableLength > 0) {
+                LOGGER.debug("Resuming download of {} from offset {}", this, resumableLength);
+            } else {
+                LOGGER.debug("Local copy will be stored for {}", this);
+            }
+            if (resumableLength < attributes.getSize() || attributes.getSize() == FtpFileAttributes.UNKNOWN) {
+                client.retrieveFile(this, os, resumableLength);
             }
-            return localCopy;
         } catch (IOException e) {
-            localCopyManager.deleteLocalCopy(this);
+            // partial copy is kept to resume the download if it was interrupted (e.g. aborted by another download)
+            if (!LocalCopyManager.isVersionKnown(attributes)) {
+                localCopyManager.deletePartialCopy(this);
+            }
             throw e;
         }
+        return localCopyManager.commitPartialCopy(this, attributes);
     }
 
 
@@ -116,6 +229,93 @@ public final class FtpFileObject extends AbstractFileObject {
         return localCopyManager.getLocalCopy(this);
     }
 
+    /**
+     * Restores local copy of this file from {@link PersistentCache} if the current file version is present there.
+     * @param attributes current attributes of this file on FTP server.
+     * @return restored local copy; null if it is not present in persistent cache (or it is disabled).
+     * @throws IOException on any I/O errors.
+     */
+    @Nullable
+    public Path restoreLocalCopy(@Nonnull FtpFileAttributes attributes) throws IOException {
+        PersistentCache persistentCache = PersistentCache.getInstance();
+        String contentKey = getContentKey(attributes);
+        if (persistentCache == null || contentKey == null) {
+            return null;
+        }
+        Path cached = persistentCache.get(contentKey);
+        return cached == null ? null : localCopyManager.storeLocalCopy(this, cached, attributes);
+    }
+
+    /**
+     * @return key identifying this file version in {@link PersistentCache}; null if size or modification time of
+     * file is unknown.
+     */
+    @Nullable
+    private String getContentKey(FtpFileAttributes attributes) {
+        if (attributes.getSize() == FtpFileAttributes.UNKNOWN
+                || attributes.getLastModified() == FtpFileAttributes.UNKNOWN) {
+            return null;
+        }
+        return "ftp|" + getUrl() + "|" + attributes.getSize() + "|" + attributes.getLastModified();
+    }
+
+    /**
+     * @return attributes of this file requested from FTP server.
+     * @throws IOException on any I/O errors.
+     */
+    @Nonnull
+    public FtpFileAttributes getRemoteAttributes() throws IOException {
+        return client.getFileAttributes(this);
+    }
+
+    /**
+     * @return attributes received with directory listing if both size and modification time are known; otherwise
+     * attributes are requested from FTP server.
+     * @throws IOException on any I/O errors.
+     */
+    @Nonnull
+    public FtpFileAttributes getAttributes() throws IOException {
+        if (listedAttributes != null && listedAttributes.getSize() != FtpFileAttributes.UNKNOWN
+                && listedAttributes.getLastModified() != FtpFileAttributes.UNKNOWN) {
+            return listedAttributes;
+        }
+        return getRemoteAttributes();
+    }
+
+    /**
+     * @return attributes received with directory listing (some of them may be unknown); null if this file object
+     * was not created by listing.
+     */
+    @Nullable
+    public FtpFileAttributes getListedAttributes() {
+        return listedAttributes;
+    }
+
+    /**
+     * @return permissions in <code>ls</code> format (e.g. <code>rw-r--r--</code>); null if unknown.
+     */
+    @Nullable
+    public String getPermissions() {
+        return permissions;
+    }
+
+    /**
+     * @param size size of this file.
+     * @return source reading ranges of this file directly from FTP server.
+     */
+    @Nonnull
+    public SeekableSource getRemoteSource(long size) {
+        return new FtpSeekableSource(client, this, size);
+    }
+
+    /**
+     * @return URL of this file including FTP host and port.
+     */
+    @Nonnull
+    public String getUrl() {
+        return client.getFtpUrl() + getFullName();
+    }
+
     @Override
     public String toString() {
         return "FtpFileObject{" +
@@ -0,0 +1,258 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.FileObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Cache of FTP directory listings.
+ * A listing younger than TTL is returned as is. An older one (but not older than max stale time) is returned
+ * immediately too, and the directory is listed again in background: if the new listing differs (compared by hash)
+ * it replaces the cached one. Listings older than max stale time are not used.
+ */
+@ThreadSafe
+final class FtpListingCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FtpListingCache.class);
+
+    /**
+     * Default time (in millis) during which cached listing is used without revalidation. May be overridden with
+     * "filebrowser.ftp.listingCacheTtl" system property.
+     */
+    static final long TTL = Long.getLong("filebrowser.ftp.listingCacheTtl", 30 * 1000);
+
+    /**
+     * Default time (in millis) during which cached listing is used while it is revalidated. May be overridden with
+     * "filebrowser.ftp.listingCacheMaxStale" system property.
+     */
+    static final long MAX_STALE = Long.getLong("filebrowser.ftp.listingCacheMaxStale", 10 * 60 * 1000);
+
+    /**
+     * Max count of cached directory listings.
+     */
+    private static final int MAX_ENTRIES = 256;
+
+    private static final String PATH_SEPARATOR = "/";
+
+    /**
+     * Lists directories on FTP server.
+     */
+    interface Lister {
+        @Nonnull
+        List<FileObject> list(@Nonnull FtpFileObject directory, @Nonnull TransferPriority priority,
+                @Nullable ListingPageConsumer consumer) throws IOException;
+    }
+
+    private final Lister lister;
+    private final long ttl;
+    private final long maxStale;
+
+    private final Map<String, Listing> listings = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    }; // guarded by this
+    private final Set<String> revalidating = new HashSet<>(); // guarded by this
+
+    private final ExecutorService revalidationService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread thread = new Thread(r, "FTP listing revalidation");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param lister used to list directories.
+     * @param ttl time in millis during which cached listing is used without revalidation.
+     * @param maxStale time in millis during which cached listing is used while it is revalidated.
+     */
+    FtpListingCache(@Nonnull Lister lister, long ttl, long maxStale) {
+        this.lister = Objects.requireNonNull(lister);
+        this.ttl = ttl;
+        this.maxStale = maxStale;
+    }
+
+    /**
+     * @return cached directory children if present and not too old; otherwise directory is listed.
+     * @throws IOException on any I/O errors while listing.
+     */
+    @Nonnull
+    List<FileObject> get(@Nonnull FtpFileObject directory) throws IOException {
+        return get(directory, null);
+    }
+
+    /**
+     * @param consumer receives directory children in pages while directory is listed; cached children are passed in
+     *                 a single page.
+     * @return cached directory children if present and not too old; otherwise directory is listed.
+     * @throws IOException on any I/O errors while listing.
+     */
+    @Nonnull
+    List<FileObject> get(@Nonnull FtpFileObject directory, @Nullable ListingPageConsumer consumer)
+            throws IOException {
+        String path = directory.getFullName();
+        Listing listing;
+        synchronized (this) {
+            listing = listings.get(path);
+        }
+
+        if (listing != null) {
+            long age = System.currentTimeMillis() - listing.listedAt;
+            if (age < maxStale) {
+                if (age >= ttl) {
+                    scheduleRevalidation(directory);
+                }
+                if (consumer != null && !listing.children.isEmpty()) {
+                    consumer.accept(listing.children);
+                }
+                return new ArrayList<>(listing.children);
+            }
+        }
+
+        List<FileObject> children = lister.list(directory, TransferPriority.LISTING, consumer);
+        put(path, new Listing(children, System.currentTimeMillis()));
+        return new ArrayList<>(children);
+    }
+
+    /**
+     * @return true if listing of directory with passed path is cached and younger than TTL.
+     */
+    synchronized boolean isFresh(@Nonnull String path) {
+        Listing listing = listings.get(path);
+        return listing != null && System.currentTimeMillis() - listing.listedAt < ttl;
+    }
+
+    /**
+     * Caches passed directory listing (e.g. prefetched one) unless a listing younger than TTL is already cached.
+     */
+    synchronized void putIfNotFresh(@Nonnull FtpFileObject directory, @Nonnull List<FileObject> children) {
+        if (!isFresh(directory.getFullName())) {
+            listings.put(directory.getFullName(), new Listing(children, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Removes cached listings of passed directory and all its subdirectories.
+     * @param fullPath full path of directory on FTP server.
+     */
+    synchronized void invalidate(@Nonnull String fullPath) {
+        String subdirectoriesPrefix = fullPath.endsWith(PATH_SEPARATOR) ? fullPath : fullPath + PATH_SEPARATOR;
+        Iterator<String> it = listings.keySet().iterator();
+        while (it.hasNext()) {
+            String path = it.next();
+            if (path.equals(fullPath) || path.startsWith(subdirectoriesPrefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Lists passed directory again with background priority; cached listing is replaced if the new one differs.
+     */
+    void revalidate(@Nonnull FtpFileObject directory) throws IOException {
+        String path = directory.getFullName();
+        List<FileObject> children = lister.list(directory, TransferPriority.BACKGROUND, null);
+        Listing fresh = new Listing(children, System.currentTimeMillis());
+        synchronized (this) {
+            Listing cached = listings.get(path);
+            if (cached != null && cached.hash == fresh.hash) {
+                // keep the same children instances
+                listings.put(path, new Listing(cached.children, fresh.listedAt, cached.hash));
+                return;
+            }
+            LOGGER.debug("Directory listing changed: {}", path);
+            listings.put(path, fresh);
+        }
+    }
+
+    /**
+     * Stops revalidation in background; a revalidation in progress is interrupted.
+     */
+    void close() {
+        revalidationService.shutdownNow();
+    }
+
+    private synchronized void put(String path, Listing listing) {
+        listings.put(path, listing);
+    }
+
+    private void scheduleRevalidation(final FtpFileObject directory) {
+        final String path = directory.getFullName();
+        synchronized (this) {
+            if (!revalidating.add(path)) {
+                return;
+            }
+        }
+
+        try {
+            revalidationService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        revalidate(directory);
+                    } catch (IOException e) {
+                        LOGGER.debug("Unable to revalidate directory listing: " + path, e);
+                    } finally {
+                        synchronized (FtpListingCache.this) {
+                            revalidating.remove(path);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Listing cache is closed; {} is not revalidated", path);
+            synchronized (this) {
+                revalidating.remove(path);
+            }
+        }
+    }
+
+    private static int hash(List<FileObject> children) {
+        int hash = 1;
+        for (FileObject child : children) {
+            hash = 31 * hash + child.getFullName().hashCode();
+            hash = 31 * hash + (child.isDirectory() ? 1 : 0);
+            if (child instanceof FtpFileObject) {
+                hash = 31 * hash + Objects.hashCode(((FtpFileObject) child).getListedAttributes());
+            }
+        }
+        return hash;
+    }
+
+
+    private static final class Listing {
+        private final List<FileObject> children;
+        private final long listedAt;
+        private final int hash;
+
+        private Listing(List<FileObject> children, long listedAt) {
+            this(Collections.unmodifiableList(new ArrayList<>(children)), listedAt, hash(children));
+        }
+
+        private Listing(List<FileObject> children, long listedAt, int hash) {
+            this.children = children;
+            this.listedAt = listedAt;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.SeekableSource;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * {@link SeekableSource} for a file located on FTP server. Each stream is a separate transfer started from required
+ * offset with REST command, so only the requested ranges of file are transferred.
+ */
+final class FtpSeekableSource implements SeekableSource {
+    private final FtpClient client;
+    private final FtpFileObject file;
+    private final long size;
+
+    /**
+     * @param client FTP client for the host the file is located on.
+     * @param file file on FTP server.
+     * @param size file size in bytes.
+     */
+    FtpSeekableSource(@Nonnull FtpClient client, @Nonnull FtpFileObject file, long size) {
+        this.client = Objects.requireNonNull(client);
+        this.file = Objects.requireNonNull(file);
+        this.size = size;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Nonnull
+    @Override
+    public InputStream openStream(long position) throws IOException {
+        if (position < 0 || position > size) {
+            throw new IOException("Position " + position + " is out of file bounds: " + file);
+        }
+        return client.retrieveFileStream(file, position);
+    }
+
+    @Override
+    public String toString() {
+        return "FtpSeekableSource{" +
+                "file=" + file +
+                ", size=" + size +
+                '}';
+    }
+}
@@ -0,0 +1,262 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.VfsUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Downloads file in segments which are transferred concurrently (each over its own connection) and written to the
+ * same positions of local file with positional writes.
+ * <p>
+ * If any segment fails (or current thread is interrupted), transfers of the rest segments are aborted and the
+ * download completes only when all segment threads are finished, so local file is not written after that. Local file
+ * is truncated then to the contents written completely from its beginning, so that the download may be resumed.
+ */
+final class FtpSegmentedDownloader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FtpSegmentedDownloader.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Transfers segments of a single file.
+     */
+    interface Transport {
+        /**
+         * Opens data stream of the file starting from passed offset; the connection of the segment is released when
+         * the stream is closed.
+         * @param segment index of the segment.
+         */
+        @Nonnull
+        InputStream open(int segment, long offset) throws IOException;
+
+        /**
+         * Aborts transfers of all segments; it is called from another thread, so that segment threads blocked in
+         * reading fail promptly.
+         */
+        void abort();
+    }
+
+    private final ExecutorService executor;
+
+    /**
+     * @param executor used to transfer segments; it must not limit count of concurrent tasks.
+     */
+    FtpSegmentedDownloader(@Nonnull ExecutorService executor) {
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    /**
+     * @param transport transfers segments.
+     * @param segments count of segments.
+     * @param size file size in bytes.
+     * @param file local file to write to; it is overwritten.
+     * @param name file name used in error messages.
+     * @throws IOException if any segment fails; transfers of all segments are finished then.
+     * @throws InterruptedIOException if current thread is interrupted; transfers of all segments are finished then.
+     */
+    void download(@Nonnull Transport transport, int segments, long size, @Nonnull Path file, @Nonnull String name)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            download(transport, segments, size, channel, file, name);
+        }
+    }
+
+    private void download(Transport transport, int segments, long size, FileChannel channel, Path file, String name)
+            throws IOException {
+        long segmentSize = (size + segments - 1) / segments;
+        CountDownLatch finished = new CountDownLatch(segments);
+        List<Segment> tasks = new ArrayList<>();
+        List<Future<Void>> futures = new ArrayList<>();
+        CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+        for (int i = 0; i < segments; i++) {
+            long offset = i * segmentSize;
+            long length = Math.max(0, Math.min(segmentSize, size - offset));
+            Segment segment = new Segment(transport, i, channel, offset, length, offset + length == size, name,
+                    finished);
+            tasks.add(segment);
+            futures.add(completionService.submit(segment));
+        }
+
+        try {
+            // segments are checked in order of completion, so that a failure is noticed while others are running
+            for (int i = 0; i < segments; i++) {
+                completionService.take().get();
+            }
+        } catch (InterruptedException e) {
+            stop(transport, channel, tasks, futures, finished);
+            truncateToCompleted(file, tasks);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download interrupted");
+        } catch (ExecutionException e) {
+            stop(transport, channel, tasks, futures, finished);
+            truncateToCompleted(file, tasks);
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Segment download failed", e.getCause());
+        }
+    }
+
+    /**
+     * Aborts the rest segments and waits until all segment threads are finished. Local file is closed so segments
+     * fail on their next write.
+     */
+    private static void stop(Transport transport, FileChannel channel, List<Segment> segments,
+            List<Future<Void>> futures, CountDownLatch finished) {
+        for (Segment segment : segments) {
+            segment.cancel();
+        }
+        transport.abort();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to close local file", e);
+        }
+        for (Future<Void> future : futures) {
+            future.cancel(true);
+        }
+
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                try {
+                    if (!finished.await(1, TimeUnit.MINUTES)) {
+                        LOGGER.warn("Segment downloads are not finished in time");
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Truncates local file to the contents written completely from its beginning; the file is deleted if it can't be
+     * truncated.
+     */
+    private static void truncateToCompleted(Path file, List<Segment> segments) {
+        long completed = 0;
+        for (Segment segment : segments) {
+            long written = segment.getWritten();
+            completed += written;
+            if (written < segment.length) {
+                break;
+            }
+        }
+        // not truncated with a channel, since it is closed if current thread is interrupted
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(completed);
+        } catch (IOException e) {
+            LOGGER.debug("Unable to truncate " + file, e);
+            VfsUtils.deleteQuietly(file);
+        }
+    }
+
+
+    /**
+     * Downloads a range of file and writes it to the same position of local file.
+     * If the range is not the last one, the transfer is aborted when the range is downloaded.
+     */
+    private static final class Segment implements Callable<Void> {
+        private final Transport transport;
+        private final int index;
+        private final FileChannel channel;
+        private final long offset;
+        private final long length;
+        private final boolean last;
+        private final String name;
+        private final CountDownLatch finished;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private volatile long written = 0; // length of range contents written to local file
+
+        private Segment(Transport transport, int index, FileChannel channel, long offset, long length, boolean last,
+                String name, CountDownLatch finished) {
+            this.transport = transport;
+            this.index = index;
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+            this.last = last;
+            this.name = name;
+            this.finished = finished;
+        }
+
+        long getWritten() {
+            return written;
+        }
+
+        /**
+         * Prevents the segment from being started; a segment which is started already is not affected.
+         */
+        void cancel() {
+            if (started.compareAndSet(false, true)) {
+                finished.countDown();
+            }
+        }
+
+        @Override
+        public Void call() throws IOException {
+            if (!started.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                download();
+            } finally {
+                finished.countDown();
+            }
+            return null;
+        }
+
+        private void download() throws IOException {
+            try (InputStream is = transport.open(index, offset)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long position = offset;
+                long remaining = length;
+                while (remaining > 0) {
+                    int read = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("File is shorter than expected: " + name);
+                    }
+                    ByteBuffer bb = ByteBuffer.wrap(buffer, 0, read);
+                    while (bb.hasRemaining()) {
+                        position += channel.write(bb, position);
+                        written = position - offset;
+                    }
+                    remaining -= read;
+                }
+                if (last && is.read() != -1) {
+                    throw new IOException("File is longer than expected: " + name);
+                }
+            }
+        }
+    }
+}
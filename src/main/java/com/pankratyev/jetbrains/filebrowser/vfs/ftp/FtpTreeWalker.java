@@ -0,0 +1,282 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.FileObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walks FTP directory tree. Directories are listed in parallel (each listing uses a pooled connection) and their
+ * children are passed to consumer as soon as each directory is listed. If the server supports recursive listing
+ * (LIST -R), the whole tree below the root is listed at once instead; directories missing from recursive listing
+ * are listed in parallel then.
+ * <p>
+ * Pending directories are kept in a bounded queue: if it is full, the thread which found a directory lists it
+ * itself.
+ */
+final class FtpTreeWalker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FtpTreeWalker.class);
+
+    /**
+     * Max count of attempts to list a directory; listing with background priority may be cancelled to give way to
+     * user-initiated operations, so it is retried.
+     */
+    private static final int MAX_LIST_ATTEMPTS = 3;
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread thread = new Thread(r, "FTP tree walk");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * Lists directories on FTP server.
+     */
+    interface Lister {
+        @Nonnull
+        List<FileObject> list(@Nonnull FtpFileObject directory) throws IOException;
+
+        /**
+         * Lists passed directory and all its subdirectories at once (LIST -R).
+         * @param consumer receives each listed directory.
+         * @return false if recursive listing is not supported; nothing is passed to consumer then.
+         */
+        boolean listRecursively(@Nonnull FtpFileObject directory, @Nonnull DirectoryConsumer consumer)
+                throws IOException;
+    }
+
+    /**
+     * Receives children of listed directories.
+     */
+    interface DirectoryConsumer {
+        void accept(@Nonnull FtpFileObject directory, @Nonnull List<FileObject> children);
+    }
+
+    private final Lister lister;
+    private final int parallelism;
+    private final int queueSize;
+
+    /**
+     * @param lister used to list directories.
+     * @param parallelism max count of directories listed at once.
+     * @param queueSize max count of directories waiting to be listed.
+     */
+    FtpTreeWalker(@Nonnull Lister lister, int parallelism, int queueSize) {
+        if (parallelism <= 0 || queueSize <= 0) {
+            throw new IllegalArgumentException("Parallelism and queue size must be positive: " + parallelism + ", "
+                    + queueSize);
+        }
+        this.lister = Objects.requireNonNull(lister);
+        this.parallelism = parallelism;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Lists passed directory and all its subdirectories. Symbolic links to directories are not followed.
+     * @param root directory to walk.
+     * @param consumer receives children of each directory as a separate page; pages are passed one at a time from
+     *                 walker threads.
+     * @throws IOException if any directory can't be listed; the walk is stopped then.
+     * @throws InterruptedIOException if current thread is interrupted; the walk is stopped then.
+     */
+    void walk(@Nonnull FtpFileObject root, @Nonnull ListingPageConsumer consumer) throws IOException {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize), THREAD_FACTORY,
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        Walk walk = new Walk(executor, Objects.requireNonNull(consumer));
+        try {
+            List<FtpFileObject> subdirectories = walk.listed(root, listWithRetries(root));
+            if (!subdirectories.isEmpty() && listRecursively(root, subdirectories, walk)) {
+                subdirectories = walk.getUnlisted();
+                LOGGER.debug("Directories not listed recursively under {}: {}", root, subdirectories.size());
+            }
+            for (FtpFileObject subdirectory : subdirectories) {
+                walk.submit(subdirectory);
+            }
+            walk.await();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param subdirectories subdirectories of root; they are deferred like ones found by recursive listing.
+     * @return true if recursive listing is supported (even if it failed in the middle).
+     */
+    private boolean listRecursively(FtpFileObject root, List<FtpFileObject> subdirectories, final Walk walk)
+            throws InterruptedIOException {
+        walk.startDeferring(subdirectories);
+        try {
+            return lister.listRecursively(root, new DirectoryConsumer() {
+                @Override
+                public void accept(@Nonnull FtpFileObject directory, @Nonnull List<FileObject> children) {
+                    walk.listed(directory, children);
+                }
+            });
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            LOGGER.debug("Recursive listing of " + root + " failed; the rest directories are listed one by one", e);
+            return true;
+        } finally {
+            walk.stopDeferring();
+        }
+    }
+
+    private List<FileObject> listWithRetries(FtpFileObject directory) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return lister.list(directory);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= MAX_LIST_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                LOGGER.debug("Unable to list " + directory + "; retrying", e);
+            }
+        }
+    }
+
+
+    /**
+     * State of a single walk.
+     */
+    private final class Walk {
+        private final ThreadPoolExecutor executor;
+        private final ListingPageConsumer consumer;
+
+        private final Set<String> listedPaths = new HashSet<>(); // guarded by this
+        private final List<FtpFileObject> deferred = new ArrayList<>(); // guarded by this
+        private boolean deferring = false; // guarded by this
+        private int pending = 0; // guarded by this
+        private IOException failure; // guarded by this
+
+        private Walk(ThreadPoolExecutor executor, ListingPageConsumer consumer) {
+            this.executor = executor;
+            this.consumer = consumer;
+        }
+
+        /**
+         * Passes children of listed directory to consumer (unless the directory is listed already).
+         * @return subdirectories to be listed; empty while deferring (they are remembered then).
+         */
+        synchronized List<FtpFileObject> listed(FtpFileObject directory, List<FileObject> children) {
+            if (!listedPaths.add(directory.getFullName())) {
+                return new ArrayList<>();
+            }
+            if (!children.isEmpty()) {
+                consumer.accept(children);
+            }
+
+            List<FtpFileObject> subdirectories = new ArrayList<>();
+            for (FileObject child : children) {
+                if (child.isDirectory() && child instanceof FtpFileObject) {
+                    subdirectories.add((FtpFileObject) child);
+                }
+            }
+            if (deferring) {
+                deferred.addAll(subdirectories);
+                return new ArrayList<>();
+            }
+            return subdirectories;
+        }
+
+        /**
+         * Found subdirectories are remembered instead of being returned for listing until {@link #stopDeferring()}.
+         * @param subdirectories subdirectories found already.
+         */
+        synchronized void startDeferring(List<FtpFileObject> subdirectories) {
+            deferring = true;
+            deferred.addAll(subdirectories);
+        }
+
+        synchronized void stopDeferring() {
+            deferring = false;
+        }
+
+        /**
+         * @return deferred subdirectories which are not listed yet.
+         */
+        synchronized List<FtpFileObject> getUnlisted() {
+            List<FtpFileObject> unlisted = new ArrayList<>();
+            for (FtpFileObject directory : deferred) {
+                if (!listedPaths.contains(directory.getFullName())) {
+                    unlisted.add(directory);
+                }
+            }
+            deferred.clear();
+            return unlisted;
+        }
+
+        /**
+         * Lists passed directory in walker thread (or in current thread if the queue is full).
+         */
+        void submit(final FtpFileObject directory) {
+            synchronized (this) {
+                if (failure != null) {
+                    return;
+                }
+                pending++;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (FtpFileObject subdirectory : listed(directory, listWithRetries(directory))) {
+                            submit(subdirectory);
+                        }
+                    } catch (IOException e) {
+                        failed(e);
+                    } finally {
+                        completed();
+                    }
+                }
+            });
+        }
+
+        private synchronized void failed(IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+            notifyAll();
+        }
+
+        private synchronized void completed() {
+            pending--;
+            notifyAll();
+        }
+
+        /**
+         * Waits until all submitted directories are listed or any of them fails.
+         */
+        synchronized void await() throws IOException {
+            while (pending > 0 && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while walking FTP directory tree");
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads local files and directories to FTP server. Remote directories are created first; then files are uploaded
+ * concurrently, each over its own pooled connection.
+ * <p>
+ * If the server supports restarting transfers at an offset (REST STREAM), a large file is split into segments when
+ * there are free transfer slots: the first segment is stored with STOR (which truncates the remote file), and once
+ * the server opens the file, the other segments are stored concurrently with REST + STOR. The size of uploaded
+ * file is checked then; if segmented upload fails, the file is uploaded again in a single stream.
+ */
+final class FtpUploader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FtpUploader.class);
+
+    /**
+     * Max count of attempts to store a file or a segment; transfers with background priority may be cancelled to
+     * give way to user-initiated operations, so they are retried.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String PATH_SEPARATOR = "/";
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread thread = new Thread(r, "FTP upload");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * Performs operations on FTP server; each operation uses its own pooled connection.
+     */
+    interface Transport {
+        /**
+         * Creates remote directory if it doesn't exist.
+         */
+        void makeDirectory(@Nonnull String path) throws IOException;
+
+        /**
+         * Stores data to remote file starting from passed offset (REST + STOR); the file is truncated if offset is 0.
+         * @param opened called when the data connection is opened, i.e. the server has opened the file.
+         */
+        void store(@Nonnull String path, long offset, @Nonnull InputStream data, @Nonnull Runnable opened)
+                throws IOException;
+
+        /**
+         * @return true if the server supports storing data at an offset (REST STREAM).
+         */
+        boolean isRestartSupported() throws IOException;
+
+        /**
+         * @return size of remote file in bytes; negative if unknown.
+         */
+        long getSize(@Nonnull String path) throws IOException;
+    }
+
+    private final Transport transport;
+    private final int parallelism;
+    private final int maxSegments;
+    private final long minSegmentSize;
+
+    /**
+     * @param transport used to perform operations on FTP server.
+     * @param parallelism max count of concurrent transfers (files and segments).
+     * @param maxSegments max count of segments a large file is uploaded in.
+     * @param minSegmentSize min size of a segment in bytes.
+     */
+    FtpUploader(@Nonnull Transport transport, int parallelism, int maxSegments, long minSegmentSize) {
+        if (parallelism <= 0 || maxSegments <= 0 || minSegmentSize <= 0) {
+            throw new IllegalArgumentException("Parallelism, max segments and min segment size must be positive: "
+                    + parallelism + ", " + maxSegments + ", " + minSegmentSize);
+        }
+        this.transport = Objects.requireNonNull(transport);
+        this.parallelism = parallelism;
+        this.maxSegments = maxSegments;
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    /**
+     * Uploads passed local file or directory (with all its contents) into passed remote directory. Existing remote
+     * files are overwritten.
+     * @param local local file or directory.
+     * @param remoteDirectory path of remote directory.
+     * @param listener receives upload progress.
+     * @throws IOException if any file can't be uploaded; the upload is stopped then.
+     * @throws InterruptedIOException if current thread is interrupted; the upload is stopped then.
+     */
+    void upload(@Nonnull Path local, @Nonnull String remoteDirectory, @Nonnull UploadListener listener)
+            throws IOException {
+        Upload upload = new Upload(Objects.requireNonNull(listener));
+        collect(local, remoteDirectory, upload);
+        for (String directory : upload.directories) {
+            makeDirectoryWithRetries(directory);
+        }
+        if (upload.files.isEmpty()) {
+            return;
+        }
+
+        boolean segmentable = maxSegments > 1 && transport.isRestartSupported();
+        ExecutorService fileExecutor = Executors.newFixedThreadPool(parallelism, THREAD_FACTORY);
+        ExecutorService segmentExecutor = Executors.newCachedThreadPool(THREAD_FACTORY);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (LocalFile file : upload.files) {
+                futures.add(fileExecutor.submit(new FileUpload(upload, file, segmentable, segmentExecutor)));
+            }
+            for (Future<?> future : futures) {
+                getResult(future);
+            }
+            LOGGER.debug("Uploaded {} ({} files, {} bytes) in {} ms", local, upload.files.size(), upload.total,
+                    System.currentTimeMillis() - upload.startTime);
+        } finally {
+            fileExecutor.shutdownNow();
+            segmentExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Finds files to upload and remote directories to create (parents first).
+     */
+    private static void collect(Path local, String remoteDirectory, final Upload upload) throws IOException {
+        final Path base = local.toAbsolutePath().getParent();
+        final String remoteBase = remoteDirectory.endsWith(PATH_SEPARATOR) ? remoteDirectory
+                : remoteDirectory + PATH_SEPARATOR;
+        Files.walkFileTree(local.toAbsolutePath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                upload.directories.add(getRemotePath(dir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    upload.files.add(new LocalFile(upload, file, getRemotePath(file), attrs.size()));
+                    upload.total += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            private String getRemotePath(Path path) {
+                StringBuilder sb = new StringBuilder(remoteBase);
+                for (Path name : base.relativize(path)) {
+                    if (sb.length() > remoteBase.length()) {
+                        sb.append(PATH_SEPARATOR);
+                    }
+                    sb.append(name.toString());
+                }
+                return sb.toString();
+            }
+        });
+    }
+
+    private void makeDirectoryWithRetries(String path) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                transport.makeDirectory(path);
+                return;
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                LOGGER.debug("Unable to create directory " + path + "; retrying", e);
+            }
+        }
+    }
+
+    /**
+     * Stores a range of local file.
+     * @param opened called when the server opens the remote file.
+     */
+    private void store(LocalFile file, long offset, long length, Runnable opened) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.local, StandardOpenOption.READ)) {
+            channel.position(offset);
+            InputStream data = new BufferedInputStream(
+                    new BoundedInputStream(Channels.newInputStream(channel), length), BUFFER_SIZE);
+            ProgressInputStream progress = new ProgressInputStream(data, file);
+            try {
+                transport.store(file.remotePath, offset, progress, opened);
+                if (progress.count != length) {
+                    throw new IOException("Local file " + file.local + " is changed during upload");
+                }
+            } catch (IOException | RuntimeException e) {
+                progress.rollBack();
+                throw e;
+            }
+        }
+    }
+
+    private void storeWithRetries(LocalFile file, long offset, long length, Runnable opened) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                store(file, offset, length, opened);
+                return;
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                LOGGER.debug("Unable to upload " + file.local + " from offset " + offset + "; retrying", e);
+            }
+        }
+    }
+
+    private static void getResult(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UploadException) {
+                throw (IOException) e.getCause().getCause();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Upload failed", e.getCause());
+        }
+    }
+
+
+    /**
+     * State of a single upload.
+     */
+    private final class Upload {
+        private final UploadListener listener;
+        private final List<String> directories = new ArrayList<>();
+        private final List<LocalFile> files = new ArrayList<>();
+        private long total = 0;
+
+        private final long startTime = System.currentTimeMillis();
+        private final AtomicLong sent = new AtomicLong();
+        /**
+         * Transfer slots: each file upload takes one, additional segments take free ones only.
+         */
+        private final Semaphore slots = new Semaphore(parallelism);
+
+        private Upload(UploadListener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Synchronized so that listener receives progress in order.
+         */
+        synchronized void progress(LocalFile file, long delta) {
+            long fileSent = file.sent.addAndGet(delta);
+            long totalSent = sent.addAndGet(delta);
+            long now = System.currentTimeMillis();
+            listener.fileProgress(file.local, fileSent, file.size, getThroughput(fileSent, now - file.startTime));
+            listener.overallProgress(totalSent, total, getThroughput(totalSent, now - startTime));
+        }
+
+        private long getThroughput(long bytes, long millis) {
+            return bytes * 1000 / Math.max(millis, 1);
+        }
+    }
+
+    private final class FileUpload implements Runnable {
+        private final Upload upload;
+        private final LocalFile file;
+        private final boolean segmentable;
+        private final ExecutorService segmentExecutor;
+
+        private FileUpload(Upload upload, LocalFile file, boolean segmentable, ExecutorService segmentExecutor) {
+            this.upload = upload;
+            this.file = file;
+            this.segmentable = segmentable;
+            this.segmentExecutor = segmentExecutor;
+        }
+
+        @Override
+        public void run() {
+            try {
+                upload.slots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                file.startTime = System.currentTimeMillis();
+                uploadFile();
+            } catch (IOException e) {
+                throw new UploadException(e);
+            } finally {
+                upload.slots.release();
+            }
+        }
+
+        private void uploadFile() throws IOException {
+            long maxSegments = segmentable ? Math.min(FtpUploader.this.maxSegments, file.size / minSegmentSize) : 1;
+            int extraSegments = 0;
+            while (extraSegments < maxSegments - 1 && upload.slots.tryAcquire()) {
+                extraSegments++;
+            }
+
+            if (extraSegments > 0) {
+                try {
+                    uploadSegmented(extraSegments + 1);
+                    return;
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    LOGGER.debug("Segmented upload of " + file.local + " failed; uploading in a single stream", e);
+                    upload.progress(file, -file.sent.get());
+                } finally {
+                    upload.slots.release(extraSegments);
+                }
+            }
+            storeWithRetries(file, 0, file.size, NO_OP);
+        }
+
+        private void uploadSegmented(int segments) throws IOException {
+            LOGGER.debug("Uploading {} in {} segments", file.local, segments);
+            final long segmentSize = (file.size + segments - 1) / segments;
+            final List<Future<?>> extra = new ArrayList<>();
+            IOException failure = null;
+            try {
+                // the first segment truncates the remote file, so the rest ones are started after it's opened
+                store(file, 0, segmentSize, new Runnable() {
+                    @Override
+                    public void run() {
+                        for (long offset = segmentSize; offset < file.size; offset += segmentSize) {
+                            extra.add(segmentExecutor.submit(new SegmentUpload(file, offset,
+                                    Math.min(segmentSize, file.size - offset))));
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            // wait for all started segments even on failure, so the file is not written concurrently later
+            for (Future<?> segment : extra) {
+                try {
+                    getResult(segment);
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            long remoteSize = transport.getSize(file.remotePath);
+            if (remoteSize != file.size) {
+                throw new IOException("Unexpected size of uploaded file " + file.remotePath + ": " + remoteSize);
+            }
+        }
+    }
+
+    private final class SegmentUpload implements Runnable {
+        private final LocalFile file;
+        private final long offset;
+        private final long length;
+
+        private SegmentUpload(LocalFile file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public void run() {
+            try {
+                storeWithRetries(file, offset, length, NO_OP);
+            } catch (IOException e) {
+                throw new UploadException(e);
+            }
+        }
+    }
+
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private static final class LocalFile {
+        private final Path local;
+        private final String remotePath;
+        private final long size;
+        private final AtomicLong sent = new AtomicLong();
+        private final Upload upload;
+        private volatile long startTime;
+
+        private LocalFile(Upload upload, Path local, String remotePath, long size) {
+            this.upload = upload;
+            this.local = local;
+            this.remotePath = remotePath;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Counts bytes read by transport and reports progress.
+     */
+    private static final class ProgressInputStream extends FilterInputStream {
+        private final LocalFile file;
+        private long count = 0;
+
+        private ProgressInputStream(InputStream in, LocalFile file) {
+            super(in);
+            this.file = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                counted(n);
+            }
+            return n;
+        }
+
+        private void counted(long n) {
+            count += n;
+            file.upload.progress(file, n);
+        }
+
+        /**
+         * Takes back reported progress (e.g. when transfer failed and is going to be retried).
+         */
+        private void rollBack() {
+            file.upload.progress(file, -count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Wraps {@link IOException} thrown in upload threads; it is unwrapped by {@link #getResult(Future)}.
+     */
+    private static final class UploadException extends RuntimeException {
+        private UploadException(IOException cause) {
+            super(cause);
+        }
+    }
+}
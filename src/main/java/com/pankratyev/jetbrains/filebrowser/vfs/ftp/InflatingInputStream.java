@@ -0,0 +1,71 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Inflates data transferred in MODE Z (compressed with deflate). Compression ratio and count of bytes saved by
+ * compression are logged when the stream is closed.
+ */
+final class InflatingInputStream extends InflaterInputStream {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InflatingInputStream.class);
+
+    private final CountingInputStream compressed;
+    private final String transfer;
+    private long inflatedCount = 0;
+    private boolean closed = false;
+
+    /**
+     * @param in compressed data stream.
+     * @param transfer description of the transfer to be logged (e.g. transferred file path).
+     */
+    InflatingInputStream(@Nonnull InputStream in, @Nonnull String transfer) {
+        this(new CountingInputStream(in), transfer);
+    }
+
+    private InflatingInputStream(CountingInputStream compressed, String transfer) {
+        super(compressed);
+        this.compressed = compressed;
+        this.transfer = transfer;
+    }
+
+    @Override
+    public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+        // note: single byte read() and skip() use this method too
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            inflatedCount += n;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!closed) {
+                closed = true;
+                logCompression();
+            }
+        }
+    }
+
+    private void logCompression() {
+        long compressedCount = compressed.getByteCount();
+        if (compressedCount == 0) {
+            return;
+        }
+        LOGGER.debug("MODE Z transfer of {}: {} bytes received for {} bytes of data (ratio {}), {} bytes saved",
+                transfer, compressedCount, inflatedCount,
+                String.format(Locale.ROOT, "%.1f", (double) inflatedCount / compressedCount),
+                inflatedCount - compressedCount);
+    }
+}
@@ -0,0 +1,111 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+
+/**
+ * {@link FTPClient} which operations may be cancelled from another thread: blocking socket reads ignore thread
+ * interruption, so {@link #cancel()} closes both control and data sockets which makes them fail immediately.
+ * Cancelled client can't be used anymore.
+ * <p>
+ * Data may be transferred in MODE Z (compressed with deflate) when requested with
+ * {@link #openDataConnection(String, String, boolean)}; other transfers switch back to stream mode, since
+ * {@link FTPClient} itself doesn't inflate data.
+ */
+class InterruptibleFtpClient extends FTPClient {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InterruptibleFtpClient.class);
+
+    private static final String MODE_COMMAND = "MODE";
+    private static final String DEFLATE_MODE = "Z";
+    private static final String STREAM_MODE = "S";
+
+    private volatile Socket dataSocket;
+    private volatile boolean cancelled = false;
+
+    // accessed by the thread which borrowed the client only
+    private boolean deflateMode = false;
+    private boolean keepTransferMode = false;
+
+    @Override
+    protected Socket _openDataConnection_(String command, String arg) throws IOException {
+        if (deflateMode && !keepTransferMode && !setDeflateMode(false)) {
+            throw new IOException("Cannot switch to stream transfer mode: " + getReplyString());
+        }
+        Socket socket = super._openDataConnection_(command, arg);
+        dataSocket = socket;
+        if (cancelled) {
+            closeQuietly(socket);
+            throw new InterruptedIOException("FTP operation is cancelled");
+        }
+        return socket;
+    }
+
+    /**
+     * Sends passed command which requires data connection (e.g. LIST) and opens the data connection.
+     * @param command command to send.
+     * @param arg command argument.
+     * @param deflate true to transfer data in MODE Z; stream mode is used if the server rejects MODE Z, check it with
+     *                {@link #isDeflateMode()}.
+     * @return opened data connection; null if the command is not accepted. After the data is read, the connection
+     * should be closed and {@link #completePendingCommand()} should be called.
+     * @throws IOException on any I/O errors.
+     */
+    @Nullable
+    Socket openDataConnection(@Nonnull String command, @Nullable String arg, boolean deflate) throws IOException {
+        if (deflate != deflateMode && !setDeflateMode(deflate)) {
+            if (!deflate) {
+                throw new IOException("Cannot switch to stream transfer mode: " + getReplyString());
+            }
+            LOGGER.debug("MODE Z is rejected: {}", getReplyString());
+        }
+        keepTransferMode = true;
+        try {
+            return _openDataConnection_(command, arg);
+        } finally {
+            keepTransferMode = false;
+        }
+    }
+
+    /**
+     * @return true if data is transferred in MODE Z (compressed with deflate).
+     */
+    boolean isDeflateMode() {
+        return deflateMode;
+    }
+
+    private boolean setDeflateMode(boolean deflate) throws IOException {
+        if (!FTPReply.isPositiveCompletion(sendCommand(MODE_COMMAND, deflate ? DEFLATE_MODE : STREAM_MODE))) {
+            return false;
+        }
+        deflateMode = deflate;
+        return true;
+    }
+
+    /**
+     * Closes sockets of this client; operation blocked in socket read or write fails with an I/O error.
+     */
+    void cancel() {
+        cancelled = true;
+        closeQuietly(dataSocket);
+        closeQuietly(_socket_);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to close socket", e);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples of some operation and calculates percentiles of them.
+ */
+@ThreadSafe
+final class LatencyTracker {
+    private final long[] samples; // guarded by this; ring buffer
+    private int count = 0; // guarded by this
+    private int next = 0; // guarded by this
+
+    /**
+     * @param capacity count of the most recent samples to keep.
+     */
+    LatencyTracker(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.samples = new long[capacity];
+    }
+
+    /**
+     * @param latency latency in millis; the oldest sample is dropped if there are capacity samples already.
+     */
+    synchronized void record(long latency) {
+        samples[next] = latency;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * Starts measuring latency of an operation; the sample should be {@link Sample#stop() stopped} in a finally block,
+     * so that operations which fail or are cancelled before they complete are recorded too, with the time waited so
+     * far. Otherwise stalled operations would be missing from samples and percentiles would be underestimated.
+     */
+    @Nonnull
+    Sample start() {
+        return new Sample(System.currentTimeMillis());
+    }
+
+    synchronized int getSampleCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile percentile in (0, 100] range.
+     * @return the least kept sample which is not less than passed percent of kept samples; 0 if there are no samples.
+     */
+    synchronized long getPercentile(int percentile) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be in (0, 100] range: " + percentile);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+
+
+    /**
+     * Latency of a single operation being measured.
+     */
+    final class Sample {
+        private final long startTime;
+        private boolean stopped = false; // guarded by LatencyTracker.this
+
+        private Sample(long startTime) {
+            this.startTime = startTime;
+        }
+
+        /**
+         * Records time elapsed since the sample was started; subsequent calls are ignored.
+         */
+        void stop() {
+            synchronized (LatencyTracker.this) {
+                if (!stopped) {
+                    stopped = true;
+                    record(System.currentTimeMillis() - startTime);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.FileObject;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Receives directory listing in pages as they are received from FTP server.
+ * @see FtpFileObject#listChildren(ListingPageConsumer)
+ */
+public interface ListingPageConsumer {
+    /**
+     * Called in listing thread for each page of directory children.
+     * @param page next children; never empty.
+     */
+    void accept(@Nonnull List<FileObject> page);
+}
@@ -1,6 +1,7 @@
 package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
 
-import com.pankratyev.jetbrains.filebrowser.vfs.FileObject;
+import com.pankratyev.jetbrains.filebrowser.vfs.DiskCache;
+import com.pankratyev.jetbrains.filebrowser.vfs.PersistentCache;
 import com.pankratyev.jetbrains.filebrowser.vfs.VfsUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,17 +10,27 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
 
 /**
  * Utility class to manage files cached to local disk from FTP server.
+ * Local copies are tracked by {@link DiskCache} so they may be evicted when cache budget is exceeded.
+ * Size and modification time of the remote file are stored along with a local copy; a local copy is used without
+ * checking the remote file during revalidation interval, after that it is used only if the remote file is unchanged.
+ * Partial copies and info files are stored in separate directories so they never clash with local copies.
  */
 public class LocalCopyManager {
     private static final Logger LOGGER = LoggerFactory.getLogger(LocalCopyManager.class);
@@ -35,14 +46,33 @@ public class LocalCopyManager {
     }
 
     /**
-     * If a local copy was created more than this time interval ago it will be considered outdated.
+     * Default time (in millis) during which a local copy is used without checking that the remote file is unchanged.
+     * May be overridden with "filebrowser.ftp.localCopyRevalidationInterval" system property.
      */
-    private static final int LOCAL_COPY_EXPIRE_TIME_INTERVAL = 3 * 60 * 1000; // millis
+    static final long REVALIDATION_INTERVAL =
+            Long.getLong("filebrowser.ftp.localCopyRevalidationInterval", 3 * 60 * 1000);
+
+    private static final String INFO_DIRECTORY = ".info";
+    private static final String PARTIAL_COPY_DIRECTORY = ".partial";
+    private static final String PARTIAL_COPY_INFO_DIRECTORY = ".partial-info";
+
+    private static final String INFO_SIZE = "size";
+    private static final String INFO_LAST_MODIFIED = "lastModified";
+    private static final String INFO_LENGTH = "length";
+    private static final String INFO_VALIDATED = "validated";
 
     private final Path basePath;
+    private final Path infoBasePath;
+    private final Path partialCopyBasePath;
+    private final Path partialCopyInfoBasePath;
+    private final DiskCache diskCache;
 
     LocalCopyManager(@Nonnull String host) {
         this.basePath = getBasePath(host);
+        this.infoBasePath = BASE_DIRECTORY.resolve(INFO_DIRECTORY).resolve(host);
+        this.partialCopyBasePath = BASE_DIRECTORY.resolve(PARTIAL_COPY_DIRECTORY).resolve(host);
+        this.partialCopyInfoBasePath = BASE_DIRECTORY.resolve(PARTIAL_COPY_INFO_DIRECTORY).resolve(host);
+        this.diskCache = DiskCache.getTempFilesCache();
     }
 
     /**
@@ -61,13 +91,14 @@ public class LocalCopyManager {
             ensureBasePathExists();
 
             Path localCopy = getLocalCopyPath(fileObject);
-            if (Files.exists(localCopy)) {
-                if (!checkLocalCopyIsValid(localCopy)) {
-                    Files.delete(localCopy);
-                } else {
-                    LOGGER.debug("Local copy found: " + localCopy);
-                    return localCopy;
-                }
+            if (Files.exists(localCopy) && !checkLocalCopyIsValid(fileObject, localCopy)) {
+                Files.delete(localCopy);
+                Files.deleteIfExists(resolve(infoBasePath, fileObject));
+                diskCache.remove(localCopy);
+            }
+            if (diskCache.touch(localCopy)) {
+                LOGGER.debug("Local copy found: " + localCopy);
+                return localCopy;
             }
         } catch (IOException e) {
             LOGGER.warn("An error occurred while trying to obtain a local file copy", e);
@@ -77,53 +108,267 @@ public class LocalCopyManager {
     }
 
     /**
-     * Provides an {@link OutputStream} to store a local copy for passed {@link FileObject}.
-     * @param fileObject file object to store local copy of.
-     * @return output stream which should be used to write file content to; or null on any I/O errors.
-     * @see FtpFileObject#getInputStream()
+     * Checks if a partial copy of passed {@link FtpFileObject} downloaded earlier may be resumed, i.e. it was
+     * downloaded from the file with the same size and modification time. A partial copy which may not be resumed
+     * is deleted.
+     * @param fileObject file object to download local copy of.
+     * @param attributes current attributes of passed file on FTP server.
+     * @return length of partial copy contents which were written completely; 0 if there's no such partial copy.
      */
-    @Nullable
-    OutputStream getLocalCopyOutputStream(@Nonnull FtpFileObject fileObject) {
+    long getResumableLength(@Nonnull FtpFileObject fileObject, @Nonnull FtpFileAttributes attributes) {
+        Path partialCopyPath = resolve(partialCopyBasePath, fileObject);
+        Properties info = isVersionKnown(attributes) ? readInfo(resolve(partialCopyInfoBasePath, fileObject)) : null;
+        if (info != null) {
+            try {
+                long length = Long.parseLong(info.getProperty(INFO_LENGTH));
+                if (isSameVersion(info, attributes) && length <= attributes.getSize()
+                        && Files.exists(partialCopyPath) && Files.size(partialCopyPath) >= length) {
+                    return length;
+                }
+                LOGGER.debug("Partial copy is outdated: {}", partialCopyPath);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.debug("Unable to check partial copy: " + partialCopyPath, e);
+            }
+        }
+        deletePartialCopy(fileObject);
+        return 0;
+    }
+
+    /**
+     * Provides an {@link OutputStream} to download a local copy of passed {@link FtpFileObject} to. Downloaded
+     * contents don't become the local copy until {@link #commitPartialCopy(FtpFileObject, FtpFileAttributes)} is
+     * called. If file attributes are known, the length of written contents is recorded when the stream is closed so
+     * an interrupted download may be resumed later.
+     * @param fileObject file object to download local copy of.
+     * @param attributes current attributes of passed file on FTP server.
+     * @param offset length of partial copy contents to keep; the rest are overwritten.
+     * @return output stream which should be used to write file content starting from passed offset.
+     * @throws IOException on any I/O errors.
+     */
+    @Nonnull
+    OutputStream getPartialCopyOutputStream(@Nonnull FtpFileObject fileObject,
+            @Nonnull FtpFileAttributes attributes, long offset) throws IOException {
+        Path partialCopyPath = getPartialCopyPath(fileObject);
+        FileChannel channel = FileChannel.open(partialCopyPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
         try {
-            ensureBasePathExists();
-            Path localCopyPath = getLocalCopyPath(fileObject);
-            Files.createDirectories(localCopyPath.getParent());
-            LOGGER.debug("Returning local copy OS: " + localCopyPath);
-            return new BufferedOutputStream(Files.newOutputStream(localCopyPath));
-        } catch (IOException e) {
-            LOGGER.warn("Unable to open a local copy to write", e);
+            channel.truncate(offset);
+            channel.position(offset);
+            return new PartialCopyOutputStream(channel, partialCopyPath, resolve(partialCopyInfoBasePath, fileObject),
+                    attributes);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
         }
-        return null;
     }
 
     /**
-     * Deletes the local copy of passed {@link FtpFileObject} if present.
-     * @param fileObject file located on FTP server to delete local copy of.
-     * @throws IOException on I/O errors while deleting the local copy.
+     * Provides a file to download a local copy of passed {@link FtpFileObject} to. It doesn't become the local copy
+     * until {@link #commitPartialCopy(FtpFileObject, FtpFileAttributes)} is called, so incomplete downloads are
+     * never used.
+     * @param fileObject file object to download local copy of.
+     * @return path to write downloaded contents to; its parent directories are created.
+     * @throws IOException on any I/O errors.
      */
-    void deleteLocalCopy(@Nonnull FtpFileObject fileObject) throws IOException {
-        Path localCopy = getLocalCopy(fileObject);
-        if (localCopy == null) {
-            return;
+    @Nonnull
+    Path getPartialCopyPath(@Nonnull FtpFileObject fileObject) throws IOException {
+        Path partialCopyPath = resolve(partialCopyBasePath, fileObject);
+        Files.createDirectories(partialCopyPath.getParent());
+        return partialCopyPath;
+    }
+
+    /**
+     * Makes downloaded partial copy the local copy of passed {@link FtpFileObject}.
+     * @param fileObject file object which local copy is downloaded.
+     * @param attributes attributes of passed file on FTP server; if size is known, it is checked that partial copy
+     *                   is complete.
+     * @return local copy.
+     * @throws IOException on any I/O errors or if partial copy size differs from the file size.
+     */
+    @Nonnull
+    Path commitPartialCopy(@Nonnull FtpFileObject fileObject, @Nonnull FtpFileAttributes attributes)
+            throws IOException {
+        Path partialCopyPath = resolve(partialCopyBasePath, fileObject);
+        if (attributes.getSize() != FtpFileAttributes.UNKNOWN && Files.size(partialCopyPath) != attributes.getSize()) {
+            deletePartialCopy(fileObject);
+            throw new IOException("Downloaded file size differs from expected one: " + fileObject);
         }
-        if (Files.exists(localCopy)) {
-            Files.delete(localCopy);
+        Files.deleteIfExists(resolve(partialCopyInfoBasePath, fileObject));
+        diskCache.remove(partialCopyPath);
+
+        ensureBasePathExists();
+        Path localCopyPath = getLocalCopyPath(fileObject);
+        Files.createDirectories(localCopyPath.getParent());
+        Files.move(partialCopyPath, localCopyPath, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        storeInfo(fileObject, attributes);
+        diskCache.put(localCopyPath);
+        return localCopyPath;
+    }
+
+    /**
+     * Keeps partial copy of passed {@link FtpFileObject} written to {@link #getPartialCopyPath(FtpFileObject)} by a
+     * failed download, so that the download may be resumed from its end. It is deleted if file attributes are not
+     * known.
+     * @param fileObject file object which local copy was downloaded.
+     * @param attributes attributes of passed file on FTP server.
+     */
+    void keepPartialCopy(@Nonnull FtpFileObject fileObject, @Nonnull FtpFileAttributes attributes) {
+        Path partialCopyPath = resolve(partialCopyBasePath, fileObject);
+        if (isVersionKnown(attributes) && Files.exists(partialCopyPath)) {
+            try {
+                Properties info = createInfo(attributes);
+                info.setProperty(INFO_LENGTH, Long.toString(Files.size(partialCopyPath)));
+                Path infoPath = resolve(partialCopyInfoBasePath, fileObject);
+                Files.createDirectories(infoPath.getParent());
+                writeInfo(infoPath, info);
+                diskCache.put(partialCopyPath);
+                return;
+            } catch (IOException e) {
+                LOGGER.debug("Unable to keep partial copy: " + partialCopyPath, e);
+            }
         }
+        deletePartialCopy(fileObject);
     }
 
-    private boolean checkLocalCopyIsValid(Path localCopy) throws IOException {
-        BasicFileAttributes attrs = Files.readAttributes(localCopy, BasicFileAttributes.class);
-        long currentTime = System.currentTimeMillis();
+    /**
+     * Deletes partial copy of passed {@link FtpFileObject} if present.
+     */
+    void deletePartialCopy(@Nonnull FtpFileObject fileObject) {
+        Path partialCopyPath = resolve(partialCopyBasePath, fileObject);
+        VfsUtils.deleteQuietly(resolve(partialCopyInfoBasePath, fileObject));
+        VfsUtils.deleteQuietly(partialCopyPath);
+        diskCache.remove(partialCopyPath);
+    }
+
+    /**
+     * @return true if both size and modification time are known, so it may be detected that the file was changed;
+     * otherwise local copies of the file can't be revalidated and partial copies can't be resumed.
+     */
+    static boolean isVersionKnown(@Nonnull FtpFileAttributes attributes) {
+        return attributes.getSize() != FtpFileAttributes.UNKNOWN
+                && attributes.getLastModified() != FtpFileAttributes.UNKNOWN;
+    }
+
+    /**
+     * Stores passed file as the local copy of passed {@link FtpFileObject}. A hard link is created so that contents
+     * are not duplicated on disk; the file is copied if it can't be linked (e.g. it's on another file system).
+     * @param fileObject file object to store local copy of.
+     * @param contents file with contents of passed file object (e.g. stored in {@link PersistentCache}).
+     * @param attributes attributes of passed file on FTP server these contents correspond to.
+     * @return stored local copy.
+     * @throws IOException on any I/O errors.
+     */
+    @Nonnull
+    Path storeLocalCopy(@Nonnull FtpFileObject fileObject, @Nonnull Path contents,
+            @Nonnull FtpFileAttributes attributes) throws IOException {
+        ensureBasePathExists();
+        Path localCopyPath = getLocalCopyPath(fileObject);
+        Files.createDirectories(localCopyPath.getParent());
+        LOGGER.debug("Storing local copy from {}: {}", contents, localCopyPath);
+        Files.deleteIfExists(localCopyPath);
+        try {
+            Files.createLink(localCopyPath, contents);
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.debug("Unable to link " + contents + "; copying it", e);
+            Files.copy(contents, localCopyPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        storeInfo(fileObject, attributes);
+        diskCache.put(localCopyPath);
+        return localCopyPath;
+    }
+
+    /**
+     * Local copy is valid during revalidation interval since it was created or validated last time. After that it
+     * is valid only if size and modification time of the remote file are unchanged (they are taken from listing if
+     * known). Local copies stored without these attributes are not valid after revalidation interval.
+     */
+    private boolean checkLocalCopyIsValid(FtpFileObject fileObject, Path localCopy) throws IOException {
+        Path infoPath = resolve(infoBasePath, fileObject);
+        Properties info = readInfo(infoPath);
+        long validated;
+        try {
+            validated = info != null ? Long.parseLong(info.getProperty(INFO_VALIDATED))
+                    : Files.readAttributes(localCopy, BasicFileAttributes.class).creationTime().toMillis();
+        } catch (RuntimeException e) {
+            LOGGER.debug("Broken local copy info: " + infoPath, e);
+            return false;
+        }
 
-        //noinspection RedundantIfStatement
-        if (currentTime - attrs.creationTime().toMillis() > getLocalCopyExpireTimeInterval()) {
+        long currentTime = System.currentTimeMillis();
+        if (currentTime - validated <= getRevalidationInterval()) {
+            return true;
+        }
+        if (info == null) {
             return false;
         }
 
+        if (!isSameVersion(info, fileObject.getAttributes())) {
+            LOGGER.debug("Remote file is changed: {}", fileObject);
+            return false;
+        }
+        info.setProperty(INFO_VALIDATED, Long.toString(currentTime));
+        writeInfo(infoPath, info);
         return true;
     }
 
+    private void storeInfo(FtpFileObject fileObject, FtpFileAttributes attributes) throws IOException {
+        Path infoPath = resolve(infoBasePath, fileObject);
+        if (!isVersionKnown(attributes)) {
+            Files.deleteIfExists(infoPath);
+            return;
+        }
+        Properties info = createInfo(attributes);
+        info.setProperty(INFO_VALIDATED, Long.toString(System.currentTimeMillis()));
+        Files.createDirectories(infoPath.getParent());
+        writeInfo(infoPath, info);
+    }
+
+    private static Properties createInfo(FtpFileAttributes attributes) {
+        Properties info = new Properties();
+        info.setProperty(INFO_SIZE, Long.toString(attributes.getSize()));
+        info.setProperty(INFO_LAST_MODIFIED, Long.toString(attributes.getLastModified()));
+        return info;
+    }
+
+    private static boolean isSameVersion(Properties info, FtpFileAttributes attributes) {
+        try {
+            return isVersionKnown(attributes)
+                    && attributes.getSize() == Long.parseLong(info.getProperty(INFO_SIZE))
+                    && attributes.getLastModified() == Long.parseLong(info.getProperty(INFO_LAST_MODIFIED));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return info read from passed file; null if it is absent or can't be read.
+     */
+    @Nullable
+    private static Properties readInfo(Path infoPath) {
+        if (!Files.exists(infoPath)) {
+            return null;
+        }
+        try (InputStream is = Files.newInputStream(infoPath)) {
+            Properties info = new Properties();
+            info.load(is);
+            return info;
+        } catch (IOException e) {
+            LOGGER.debug("Unable to read " + infoPath, e);
+            return null;
+        }
+    }
+
+    private static void writeInfo(Path infoPath, Properties info) throws IOException {
+        try (OutputStream os = Files.newOutputStream(infoPath)) {
+            info.store(os, null);
+        }
+    }
+
     private Path getLocalCopyPath(FtpFileObject fileObject) {
+        return resolve(basePath, fileObject);
+    }
+
+    private static Path resolve(Path basePath, FtpFileObject fileObject) {
         String fullName = fileObject.getFullName().substring(File.separator.length());
         return basePath.resolve(fullName);
     }
@@ -144,8 +389,8 @@ public class LocalCopyManager {
     /**
      * NOTE: name of this method is used in LocalCopyManagerTest.
      */
-    private int getLocalCopyExpireTimeInterval() {
-        return LOCAL_COPY_EXPIRE_TIME_INTERVAL;
+    private long getRevalidationInterval() {
+        return REVALIDATION_INTERVAL;
     }
 
     /**
@@ -153,11 +398,58 @@ public class LocalCopyManager {
      * @param fullPath full path on FTP server under which all the file local copies should be removed.
      */
     public void invalidate(@Nonnull String fullPath) {
-        if (!Files.exists(basePath)) {
-            return;
+        String relativePath = fullPath.substring(File.separator.length());
+        for (Path base : new Path[] {basePath, infoBasePath, partialCopyBasePath, partialCopyInfoBasePath}) {
+            if (Files.exists(base)) {
+                Path pathToDelete = base.resolve(relativePath);
+                LOGGER.debug("Removing {}", pathToDelete);
+                VfsUtils.deleteQuietly(pathToDelete);
+                diskCache.remove(pathToDelete);
+            }
+        }
+    }
+
+    /**
+     * Records length of written partial copy contents when closed, so the download may be resumed from there.
+     * Partial copy is tracked by {@link DiskCache} as well.
+     */
+    private final class PartialCopyOutputStream extends FilterOutputStream {
+        private final FileChannel channel;
+        private final Path file;
+        private final Path infoFile;
+        private final FtpFileAttributes attributes;
+
+        private PartialCopyOutputStream(FileChannel channel, Path file, Path infoFile, FtpFileAttributes attributes) {
+            super(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            this.channel = channel;
+            this.file = file;
+            this.infoFile = infoFile;
+            this.attributes = attributes;
+        }
+
+        @Override
+        public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.flush();
+            } finally {
+                long length = channel.position();
+                try {
+                    super.close();
+                } finally {
+                    diskCache.put(file);
+                    if (isVersionKnown(attributes)) {
+                        Properties info = createInfo(attributes);
+                        info.setProperty(INFO_LENGTH, Long.toString(length));
+                        Files.createDirectories(infoFile.getParent());
+                        writeInfo(infoFile, info);
+                    }
+                }
+            }
         }
-        Path pathToDelete = basePath.resolve(fullPath.substring(File.separator.length()));
-        LOGGER.debug("Removing {}", pathToDelete);
-        VfsUtils.deleteQuietly(pathToDelete);
     }
 }
@@ -0,0 +1,20 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+/**
+ * Priority classes of operations sharing connections to FTP server; classes declared first are served first.
+ */
+public enum TransferPriority {
+    /**
+     * Interactive directory listing.
+     */
+    LISTING,
+    /**
+     * Preview (and download) of the selected file.
+     */
+    PREVIEW,
+    /**
+     * Prefetch and bulk transfers. Operations of this class are interrupted if connections are needed for other
+     * classes.
+     */
+    BACKGROUND
+}
@@ -0,0 +1,26 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import javax.annotation.Nonnull;
+import java.nio.file.Path;
+
+/**
+ * Receives progress of upload to FTP server. Methods are called from upload threads (concurrently), so
+ * implementations must be thread-safe. If a transfer is retried, sent byte counts decrease.
+ * @see FtpClient#upload(Path, FtpFileObject, UploadListener)
+ */
+public interface UploadListener {
+    /**
+     * @param file local file being uploaded.
+     * @param sent count of bytes of the file sent so far.
+     * @param size file size in bytes.
+     * @param throughput average upload speed of the file in bytes per second.
+     */
+    void fileProgress(@Nonnull Path file, long sent, long size, long throughput);
+
+    /**
+     * @param sent count of bytes of all files sent so far.
+     * @param total size of all files in bytes.
+     * @param throughput average upload speed in bytes per second.
+     */
+    void overallProgress(long sent, long total, long throughput);
+}
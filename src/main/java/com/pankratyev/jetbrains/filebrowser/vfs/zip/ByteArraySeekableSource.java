@@ -0,0 +1,37 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.zip;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.SeekableSource;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * {@link SeekableSource} for bytes stored in memory.
+ */
+final class ByteArraySeekableSource implements SeekableSource {
+    private final byte[] bytes;
+
+    /**
+     * @param bytes source bytes; the array is not copied so it must not be modified after passing here.
+     */
+    ByteArraySeekableSource(@Nonnull byte[] bytes) {
+        this.bytes = Objects.requireNonNull(bytes);
+    }
+
+    @Override
+    public long size() {
+        return bytes.length;
+    }
+
+    @Nonnull
+    @Override
+    public InputStream openStream(long position) throws IOException {
+        if (position < 0 || position > bytes.length) {
+            throw new IOException("Position " + position + " is out of bounds, size: " + bytes.length);
+        }
+        return new ByteArrayInputStream(bytes, (int) position, bytes.length - (int) position);
+    }
+}
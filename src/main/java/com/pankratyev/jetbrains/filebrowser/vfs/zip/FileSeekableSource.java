@@ -0,0 +1,49 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.zip;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.SeekableSource;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * {@link SeekableSource} for a file stored on local disk.
+ */
+final class FileSeekableSource implements SeekableSource {
+    private final Path file;
+
+    FileSeekableSource(@Nonnull Path file) {
+        this.file = Objects.requireNonNull(file);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return Files.size(file);
+    }
+
+    @Nonnull
+    @Override
+    public InputStream openStream(long position) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            channel.position(position);
+            return Channels.newInputStream(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FileSeekableSource{" +
+                "file=" + file +
+                '}';
+    }
+}
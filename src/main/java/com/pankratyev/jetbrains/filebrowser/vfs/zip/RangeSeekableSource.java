@@ -0,0 +1,53 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.zip;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.SeekableSource;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * {@link SeekableSource} for a range of another source. Used to read a nested archive which is stored in parent
+ * archive without compression: nested archive bytes are read directly from the parent archive.
+ */
+final class RangeSeekableSource implements SeekableSource {
+    private final SeekableSource parent;
+    private final long offset;
+    private final long size;
+
+    /**
+     * @param parent source containing the range.
+     * @param offset position of the first range byte in parent source.
+     * @param size range size in bytes.
+     */
+    RangeSeekableSource(@Nonnull SeekableSource parent, long offset, long size) {
+        this.parent = Objects.requireNonNull(parent);
+        this.offset = offset;
+        this.size = size;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Nonnull
+    @Override
+    public InputStream openStream(long position) throws IOException {
+        if (position < 0 || position > size) {
+            throw new IOException("Position " + position + " is out of range bounds, size: " + size);
+        }
+        return new BoundedInputStream(parent.openStream(offset + position), size - position);
+    }
+
+    @Override
+    public String toString() {
+        return "RangeSeekableSource{" +
+                "parent=" + parent +
+                ", offset=" + offset +
+                ", size=" + size +
+                '}';
+    }
+}
@@ -0,0 +1,73 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.zip;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.SeekableSource;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * Zip archive read from a {@link SeekableSource} with {@link ZipCentralDirectory}.
+ * Central directory is read once, when it is required for the first time.
+ */
+@ThreadSafe
+final class SeekableZipArchive {
+    private final SeekableSource source;
+    private volatile ZipCentralDirectory centralDirectory;
+
+    SeekableZipArchive(@Nonnull SeekableSource source) {
+        this.source = Objects.requireNonNull(source);
+    }
+
+    @Nonnull
+    SeekableSource getSource() {
+        return source;
+    }
+
+    /**
+     * Adds all archive entries to passed index.
+     */
+    void addEntriesTo(@Nonnull ZipIndex index) throws IOException {
+        for (ZipCentralDirectory.Entry entry : getCentralDirectory().getEntries()) {
+            index.addEntry(entry.getName(), entry.isDirectory());
+        }
+    }
+
+    /**
+     * @return stream of entry contents; null if there's no entry with passed name.
+     */
+    @Nullable
+    InputStream getEntryInputStream(@Nonnull String entryName) throws IOException {
+        ZipCentralDirectory.Entry entry = getCentralDirectory().getEntry(entryName);
+        if (entry == null) {
+            return null;
+        }
+        return new BufferedInputStream(ZipCentralDirectory.openEntryStream(source, entry));
+    }
+
+    /**
+     * @return central directory entry with passed name; null if not found.
+     */
+    @Nullable
+    ZipCentralDirectory.Entry getEntry(@Nonnull String entryName) throws IOException {
+        return getCentralDirectory().getEntry(entryName);
+    }
+
+    private ZipCentralDirectory getCentralDirectory() throws IOException {
+        ZipCentralDirectory result = centralDirectory;
+        if (result == null) {
+            synchronized (this) {
+                result = centralDirectory;
+                if (result == null) {
+                    result = ZipCentralDirectory.read(source);
+                    centralDirectory = result;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -1,23 +1,28 @@
 package com.pankratyev.jetbrains.filebrowser.vfs.zip;
 
+import com.pankratyev.jetbrains.filebrowser.vfs.DiskCache;
+import com.pankratyev.jetbrains.filebrowser.vfs.PersistentCache;
 import com.pankratyev.jetbrains.filebrowser.vfs.VfsUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
+import javax.annotation.Nonnull;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.UUID;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
+/**
+ * Extracts nested archives to temp directory. Extracted archives are tracked by {@link DiskCache} so they may be
+ * evicted when cache budget is exceeded. If {@link PersistentCache} is enabled nested archives are extracted there.
+ */
 final class SubArchiveExtractManager {
     private static final Logger LOGGER = LoggerFactory.getLogger(SubArchiveExtractManager.class);
 
@@ -33,39 +38,57 @@ final class SubArchiveExtractManager {
         }));
     }
 
+    private final DiskCache diskCache = DiskCache.getTempFilesCache();
+
     private Path getTempFileFor(ZippedFileObject fileObject) {
         String path = StringUtils.substringAfter(fileObject.getFullName(), File.separator);
         return BASE_DIRECTORY.resolve(path + ARCHIVE_TEMP_FILE_SUFFIX);
     }
 
-    Path getExtractedSubArchive(ZippedFileObject archive) throws IOException {
+    Path getExtractedSubArchive(final ZippedFileObject archive) throws IOException {
         if (!ZipUtils.isZipArchive(archive)) {
             throw new IllegalArgumentException("Not a zip archive: " + archive);
         }
 
+        PersistentCache persistentCache = PersistentCache.getInstance();
+        String contentKey = archive.getParentArchiveIndexKey().nested(archive.getPathInArchive()).getContentKey();
+        if (persistentCache != null && contentKey != null) {
+            return persistentCache.getOrLoad(contentKey, new PersistentCache.Loader() {
+                @Override
+                public void load(@Nonnull OutputStream os) throws IOException {
+                    try (InputStream nestedArchiveIs = openNestedArchive(archive)) {
+                        IOUtils.copy(nestedArchiveIs, os);
+                    }
+                }
+            });
+        }
+
         Path tempFile = getTempFileFor(archive);
-        if (Files.exists(tempFile)) {
+        if (diskCache.touch(tempFile)) {
             LOGGER.debug("Extracted sub-archive found: " + tempFile);
             return tempFile;
         }
 
-        try (ZipFile zip = archive.getParentArchiveZipFile()) {
-            String pathInArchive = archive.getPathInArchive();
-            ZipEntry entry = zip.getEntry(pathInArchive);
-            if (entry == null) {
-                throw new IOException(pathInArchive + " not found in " + zip.getName());
-            }
-
+        try (InputStream nestedArchiveIs = openNestedArchive(archive)) {
             Files.createDirectories(tempFile.getParent());
             LOGGER.debug("Extracting sub-archive: " + tempFile);
             try (OutputStream nestedArchiveOs = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
-                IOUtils.copy(new BufferedInputStream(zip.getInputStream(entry)), nestedArchiveOs);
+                IOUtils.copy(nestedArchiveIs, nestedArchiveOs);
             } catch (IOException e) {
                 VfsUtils.deleteQuietly(tempFile);
                 throw e;
             }
+            diskCache.put(tempFile);
 
             return tempFile;
         }
     }
+
+    private static InputStream openNestedArchive(ZippedFileObject archive) throws IOException {
+        InputStream nestedArchiveIs = archive.getInputStream();
+        if (nestedArchiveIs == null) {
+            throw new IOException(archive.getPathInArchive() + " not found in parent archive");
+        }
+        return nestedArchiveIs;
+    }
 }
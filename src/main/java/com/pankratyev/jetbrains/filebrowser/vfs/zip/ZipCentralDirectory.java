@@ -0,0 +1,357 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.zip;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.SeekableSource;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Zip archive central directory read from a {@link SeekableSource}.
+ * Unlike {@link java.util.zip.ZipFile} it reads only the end of central directory record and the central directory
+ * itself; entry data is read by its local header offset only when entry contents are requested. This allows to work
+ * with archives which are not stored on local disk (e.g. located on FTP server or in another archive).
+ * <p>
+ * See ZIP format specification (APPNOTE.TXT) sections 4.3.7 (local file header), 4.3.12 (central directory file
+ * header), 4.3.14-4.3.16 (end of central directory records) and 4.5.3 (ZIP64 extra field).
+ */
+final class ZipCentralDirectory {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    private static final int ENCRYPTED_FLAG = 1;
+
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    private final List<Entry> entries;
+    private final Map<String, Entry> entriesByNames;
+
+    private ZipCentralDirectory(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.entriesByNames = new HashMap<>(entries.size() * 4 / 3 + 1);
+        for (Entry entry : entries) {
+            entriesByNames.put(entry.getName(), entry);
+        }
+    }
+
+    /**
+     * Reads the central directory. At most two ranges of source are read: the tail containing end of central
+     * directory record and (if it is not in this tail) the central directory itself.
+     * @param source zip archive.
+     * @return archive central directory.
+     * @throws ZipException if a ZIP format error has occurred.
+     * @throws IOException if an I/O error has occurred.
+     */
+    @Nonnull
+    static ZipCentralDirectory read(@Nonnull SeekableSource source) throws IOException {
+        long size = source.size();
+        int tailSize = (int) Math.min(size, EOCD_SIZE + MAX_COMMENT_SIZE + ZIP64_EOCD_LOCATOR_SIZE);
+        long tailPosition = size - tailSize;
+        ByteBuffer tail = wrap(readFully(source, tailPosition, tailSize));
+
+        int eocdPosition = findEocd(tail);
+        if (eocdPosition < 0) {
+            throw new ZipException("End of central directory record not found");
+        }
+
+        long entriesCount = tail.getShort(eocdPosition + 10) & 0xFFFF;
+        long cdSize = tail.getInt(eocdPosition + 12) & ZIP64_MAGIC;
+        long cdOffset = tail.getInt(eocdPosition + 16) & ZIP64_MAGIC;
+
+        if (entriesCount == ZIP64_MAGIC_COUNT || cdSize == ZIP64_MAGIC || cdOffset == ZIP64_MAGIC) {
+            int locatorPosition = eocdPosition - ZIP64_EOCD_LOCATOR_SIZE;
+            if (locatorPosition >= 0 && tail.getInt(locatorPosition) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                long zip64EocdOffset = tail.getLong(locatorPosition + 8);
+                ByteBuffer zip64Eocd = wrap(readRange(source, tail, tailPosition, zip64EocdOffset, ZIP64_EOCD_SIZE));
+                if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                    throw new ZipException("Invalid ZIP64 end of central directory record");
+                }
+                entriesCount = zip64Eocd.getLong(32);
+                cdSize = zip64Eocd.getLong(40);
+                cdOffset = zip64Eocd.getLong(48);
+            }
+        }
+
+        if (cdOffset < 0 || cdSize < 0 || cdOffset + cdSize > size || cdSize > Integer.MAX_VALUE) {
+            throw new ZipException("Invalid central directory location: offset=" + cdOffset + ", size=" + cdSize);
+        }
+
+        ByteBuffer cd = wrap(readRange(source, tail, tailPosition, cdOffset, (int) cdSize));
+        return new ZipCentralDirectory(parseEntries(cd, entriesCount));
+    }
+
+    /**
+     * @return all archive entries in central directory order.
+     */
+    @Nonnull
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return entry with passed name or null if not found.
+     */
+    @Nullable
+    Entry getEntry(@Nonnull String name) {
+        return entriesByNames.get(name);
+    }
+
+    /**
+     * Opens a stream of entry contents. Only local header and entry data are read from the source.
+     * @param source zip archive this central directory was read from.
+     * @param entry entry of this central directory.
+     * @return uncompressed entry contents; should be closed after use.
+     * @throws ZipException if a ZIP format error has occurred or entry compression method is not supported.
+     * @throws IOException if an I/O error has occurred.
+     */
+    @Nonnull
+    static InputStream openEntryStream(@Nonnull SeekableSource source, @Nonnull Entry entry) throws IOException {
+        if ((entry.flags & ENCRYPTED_FLAG) != 0) {
+            throw new ZipException("Encrypted entries are not supported: " + entry.getName());
+        }
+        if (entry.method != METHOD_STORED && entry.method != METHOD_DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method + ": " + entry.getName());
+        }
+
+        InputStream raw = source.openStream(entry.localHeaderOffset);
+        try {
+            ByteBuffer header = wrap(new byte[LOCAL_HEADER_SIZE]);
+            IOUtils.readFully(raw, header.array());
+            if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid local header: " + entry.getName());
+            }
+            int nameLength = header.getShort(26) & 0xFFFF;
+            int extraLength = header.getShort(28) & 0xFFFF;
+            IOUtils.skipFully(raw, nameLength + extraLength);
+
+            InputStream data = new BoundedInputStream(raw, entry.compressedSize);
+            if (entry.method == METHOD_STORED) {
+                return data;
+            }
+            return inflate(data);
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeQuietly(raw);
+            throw e;
+        }
+    }
+
+    /**
+     * @return position of the first byte of entry data in source (i.e. the first byte after entry local header).
+     * @throws ZipException if a ZIP format error has occurred.
+     * @throws IOException if an I/O error has occurred.
+     */
+    static long getDataOffset(@Nonnull SeekableSource source, @Nonnull Entry entry) throws IOException {
+        ByteBuffer header = wrap(readFully(source, entry.localHeaderOffset, LOCAL_HEADER_SIZE));
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header: " + entry.getName());
+        }
+        int nameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    private static InputStream inflate(InputStream compressed) {
+        final Inflater inflater = new Inflater(true);
+        // inflater in 'nowrap' mode may require an extra dummy byte after compressed data
+        InputStream withDummyByte = new SequenceInputStream(compressed, new ByteArrayInputStream(new byte[1]));
+        return new InflaterInputStream(withDummyByte, inflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    private static int findEocd(ByteBuffer tail) {
+        int lastFound = -1;
+        for (int position = tail.limit() - EOCD_SIZE; position >= 0; position--) {
+            if (tail.getInt(position) == EOCD_SIGNATURE) {
+                int commentLength = tail.getShort(position + 20) & 0xFFFF;
+                if (position + EOCD_SIZE + commentLength == tail.limit()) {
+                    return position;
+                }
+                if (lastFound < 0) {
+                    lastFound = position; // comment length doesn't match; use it only if nothing better is found
+                }
+            }
+        }
+        return lastFound;
+    }
+
+    private static List<Entry> parseEntries(ByteBuffer cd, long expectedCount) throws ZipException {
+        List<Entry> entries = new ArrayList<>((int) Math.min(expectedCount, cd.limit() / CENTRAL_HEADER_SIZE));
+
+        int position = 0;
+        while (position + CENTRAL_HEADER_SIZE <= cd.limit()) {
+            if (cd.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                break;
+            }
+
+            int flags = cd.getShort(position + 8) & 0xFFFF;
+            int method = cd.getShort(position + 10) & 0xFFFF;
+            long compressedSize = cd.getInt(position + 20) & ZIP64_MAGIC;
+            long size = cd.getInt(position + 24) & ZIP64_MAGIC;
+            int nameLength = cd.getShort(position + 28) & 0xFFFF;
+            int extraLength = cd.getShort(position + 30) & 0xFFFF;
+            int commentLength = cd.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = cd.getInt(position + 42) & ZIP64_MAGIC;
+
+            int namePosition = position + CENTRAL_HEADER_SIZE;
+            int extraPosition = namePosition + nameLength;
+            int nextPosition = extraPosition + extraLength + commentLength;
+            if (nextPosition > cd.limit()) {
+                throw new ZipException("Invalid central directory header at " + position);
+            }
+
+            String name = new String(cd.array(), namePosition, nameLength, StandardCharsets.UTF_8);
+
+            if (size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) {
+                int fieldPosition = findExtraField(cd, extraPosition, extraLength, ZIP64_EXTRA_FIELD_ID);
+                if (fieldPosition >= 0) {
+                    int valuePosition = fieldPosition + 4;
+                    if (size == ZIP64_MAGIC) {
+                        size = cd.getLong(valuePosition);
+                        valuePosition += 8;
+                    }
+                    if (compressedSize == ZIP64_MAGIC) {
+                        compressedSize = cd.getLong(valuePosition);
+                        valuePosition += 8;
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC) {
+                        localHeaderOffset = cd.getLong(valuePosition);
+                    }
+                }
+            }
+
+            entries.add(new Entry(name, flags, method, compressedSize, size, localHeaderOffset));
+            position = nextPosition;
+        }
+
+        return entries;
+    }
+
+    private static int findExtraField(ByteBuffer cd, int extraPosition, int extraLength, int id) {
+        int position = extraPosition;
+        int end = extraPosition + extraLength;
+        while (position + 4 <= end) {
+            int fieldId = cd.getShort(position) & 0xFFFF;
+            int fieldSize = cd.getShort(position + 2) & 0xFFFF;
+            if (fieldId == id) {
+                return position;
+            }
+            position += 4 + fieldSize;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a range of source; bytes already read in tail are reused.
+     */
+    private static byte[] readRange(SeekableSource source, ByteBuffer tail, long tailPosition, long position,
+            int length) throws IOException {
+        if (position >= tailPosition && position + length <= tailPosition + tail.limit()) {
+            byte[] range = new byte[length];
+            System.arraycopy(tail.array(), (int) (position - tailPosition), range, 0, length);
+            return range;
+        }
+        return readFully(source, position, length);
+    }
+
+    private static byte[] readFully(SeekableSource source, long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        try (InputStream is = source.openStream(position)) {
+            IOUtils.readFully(is, bytes);
+        }
+        return bytes;
+    }
+
+    private static ByteBuffer wrap(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+
+    /**
+     * Central directory file header.
+     */
+    static final class Entry {
+        private final String name;
+        private final int flags;
+        private final int method;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        private Entry(String name, int flags, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = Objects.requireNonNull(name);
+            this.flags = flags;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        @Nonnull
+        String getName() {
+            return name;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith(ZipUtils.ZIP_PATH_SEPARATOR);
+        }
+
+        int getMethod() {
+            return method;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "name='" + name + '\'' +
+                    ", method=" + method +
+                    ", compressedSize=" + compressedSize +
+                    ", size=" + size +
+                    ", localHeaderOffset=" + localHeaderOffset +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.zip;
+
+import javax.annotation.Nonnull;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * Stream of zip entry contents which reads the entry directly from archive. It holds a reference to archive
+ * {@link java.util.zip.ZipFile} which is released when this stream is closed.
+ */
+final class ZipEntryInputStream extends FilterInputStream {
+    private final ZipFileHandle zipFileHandle;
+
+    /**
+     * @param zipFileHandle handle of archive the entry is read from; it will be closed with this stream.
+     * @param entryInputStream entry input stream obtained from the {@link java.util.zip.ZipFile} of passed handle.
+     */
+    ZipEntryInputStream(@Nonnull ZipFileHandle zipFileHandle, @Nonnull InputStream entryInputStream) {
+        super(Objects.requireNonNull(entryInputStream));
+        this.zipFileHandle = Objects.requireNonNull(zipFileHandle);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            zipFileHandle.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.zip;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipFile;
+
+/**
+ * Reference to a {@link ZipFile} obtained from {@link ZipFilePool}.
+ * Provided {@link ZipFile} must not be closed directly; this handle should be closed instead.
+ */
+public final class ZipFileHandle implements Closeable {
+    private final ZipFilePool pool;
+    private final ZipFilePool.SharedZipFile shared;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    ZipFileHandle(@Nonnull ZipFilePool pool, @Nonnull ZipFilePool.SharedZipFile shared) {
+        this.pool = Objects.requireNonNull(pool);
+        this.shared = Objects.requireNonNull(shared);
+    }
+
+    /**
+     * @return opened {@link ZipFile}; it must not be used after this handle is closed.
+     */
+    @Nonnull
+    public ZipFile getZipFile() {
+        if (closed.get()) {
+            throw new IllegalStateException("Zip file handle is closed");
+        }
+        return shared.getZipFile();
+    }
+
+    /**
+     * Releases the reference to {@link ZipFile}. Repeated calls have no effect.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            pool.release(shared);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.zip;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+/**
+ * Bounded pool of open {@link ZipFile}s. Opening a {@link ZipFile} requires reading archive central directory, so
+ * the same {@link ZipFile} is reused while archive is not changed (see {@link ZipIndexKey}).
+ * <p>
+ * Pooled files are reference-counted: a {@link ZipFile} is shared between all {@link ZipFileHandle}s obtained for the
+ * same archive version and is closed only when it is evicted from the pool and all its handles are closed.
+ * When count of pooled files exceeds the limit, least recently used ones are evicted.
+ */
+@ThreadSafe
+final class ZipFilePool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ZipFilePool.class);
+
+    private final int maxOpenFiles;
+    private final Map<ZipIndexKey, SharedZipFile> openFiles = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param maxOpenFiles max count of {@link ZipFile}s kept open. Files which are in use at the moment of eviction
+     *                     are closed as soon as they are released.
+     */
+    ZipFilePool(int maxOpenFiles) {
+        if (maxOpenFiles <= 0) {
+            throw new IllegalArgumentException("Max open files count must be positive: " + maxOpenFiles);
+        }
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * @param archive zip archive stored on local disk.
+     * @return handle for opened {@link ZipFile}; it must be closed after use.
+     * @throws IOException if an I/O error has occurred.
+     */
+    @Nonnull
+    ZipFileHandle acquire(@Nonnull Path archive) throws IOException {
+        ZipIndexKey key = ZipIndexKey.forFile(archive);
+
+        synchronized (this) {
+            SharedZipFile shared = openFiles.get(key);
+            if (shared != null) {
+                shared.refCount++;
+                return new ZipFileHandle(this, shared);
+            }
+        }
+
+        // opening is done outside of the lock since it reads archive central directory
+        LOGGER.debug("Opening zip file: {}", key);
+        ZipFile zipFile = new ZipFile(archive.toFile());
+
+        SharedZipFile result;
+        List<SharedZipFile> toClose = new ArrayList<>();
+        synchronized (this) {
+            result = openFiles.get(key);
+            if (result == null) {
+                result = new SharedZipFile(key, zipFile);
+                evictOtherVersions(key, toClose);
+                openFiles.put(key, result);
+            } else {
+                // opened concurrently
+                toClose.add(new SharedZipFile(key, zipFile));
+            }
+            result.refCount++;
+            evictExcessive(toClose);
+        }
+
+        for (SharedZipFile shared : toClose) {
+            shared.close();
+        }
+        return new ZipFileHandle(this, result);
+    }
+
+    void release(@Nonnull SharedZipFile shared) {
+        boolean shouldClose;
+        synchronized (this) {
+            shared.refCount--;
+            shouldClose = shared.refCount == 0 && shared.evicted;
+        }
+        if (shouldClose) {
+            shared.close();
+        }
+    }
+
+    synchronized int getOpenFilesCount() {
+        return openFiles.size();
+    }
+
+    private void evictOtherVersions(ZipIndexKey key, List<SharedZipFile> toClose) {
+        for (Iterator<SharedZipFile> iter = openFiles.values().iterator(); iter.hasNext(); ) {
+            SharedZipFile shared = iter.next();
+            if (shared.key.getPath().equals(key.getPath())) {
+                LOGGER.debug("Archive is changed, evicting outdated zip file: {}", shared.key);
+                iter.remove();
+                evict(shared, toClose);
+            }
+        }
+    }
+
+    private void evictExcessive(List<SharedZipFile> toClose) {
+        // iteration order is from least recently used to most recently used
+        for (Iterator<SharedZipFile> iter = openFiles.values().iterator();
+                iter.hasNext() && openFiles.size() > maxOpenFiles; ) {
+            SharedZipFile shared = iter.next();
+            LOGGER.debug("Evicting zip file: {}", shared.key);
+            iter.remove();
+            evict(shared, toClose);
+        }
+    }
+
+    private static void evict(SharedZipFile shared, List<SharedZipFile> toClose) {
+        shared.evicted = true;
+        if (shared.refCount == 0) {
+            toClose.add(shared);
+        }
+    }
+
+
+    /**
+     * {@link ZipFile} shared between several {@link ZipFileHandle}s. Mutable state is guarded by the pool lock.
+     */
+    static final class SharedZipFile {
+        private final ZipIndexKey key;
+        private final ZipFile zipFile;
+        private int refCount = 0;
+        private boolean evicted = false;
+
+        private SharedZipFile(ZipIndexKey key, ZipFile zipFile) {
+            this.key = key;
+            this.zipFile = zipFile;
+        }
+
+        @Nonnull
+        ZipFile getZipFile() {
+            return zipFile;
+        }
+
+        private void close() {
+            try {
+                LOGGER.debug("Closing zip file: {}", key);
+                zipFile.close();
+            } catch (IOException e) {
+                LOGGER.warn("Cannot close zip file " + key, e);
+            }
+        }
+    }
+}
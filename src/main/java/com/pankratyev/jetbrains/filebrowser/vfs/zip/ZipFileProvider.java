@@ -3,23 +3,50 @@ package com.pankratyev.jetbrains.filebrowser.vfs.zip;
 import com.pankratyev.jetbrains.filebrowser.vfs.FileObject;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 /**
- * Provides a way to obtain a {@link ZipFile instance} for archive stored locally or on FTP server.
- * {@link ZipFile} is used because it is more efficient for navigating inside archives than {@link ZipInputStream}.
+ * Provides access to contents of zip archive stored locally, on FTP server or in another archive.
+ * Implementations use {@link ZipFile} (or read archive central directory directly) because it is more efficient for
+ * navigating inside archives than {@link ZipInputStream}.
  */
 interface ZipFileProvider {
     /**
-     * Provides a {@link ZipFile} instance.
+     * @throws IOException if an I/O error has occurred.
+     * @return key identifying the current version of archive; used to cache archive contents index.
+     */
+    @Nonnull
+    ZipIndexKey getIndexKey() throws IOException;
+
+    /**
+     * Adds all archive entries to passed index.
+     * @throws IllegalStateException if this {@link FileObject} is not a zip archive.
+     * @throws ZipException if a ZIP format error has occurred.
+     * @throws IOException if an I/O error has occurred.
+     */
+    void addEntriesTo(@Nonnull ZipIndex index) throws IOException;
+
+    /**
+     * @param entryName exactly the same value that {@link java.util.zip.ZipEntry#getName()} returned.
+     * @return stream reading entry contents directly from archive; null if there's no entry with passed name.
+     * Returned stream should be closed to release the archive.
      * @throws IllegalStateException if this {@link FileObject} is not a zip archive.
      * @throws ZipException if a ZIP format error has occurred.
      * @throws IOException if an I/O error has occurred.
-     * @return {@link ZipFile} for current {@link FileObject}.
+     */
+    @Nullable
+    InputStream getEntryInputStream(@Nonnull String entryName) throws IOException;
+
+    /**
+     * @return current version of archive readable by ranges; used to open nested archives without extracting them.
+     * @throws IllegalStateException if this {@link FileObject} is not a zip archive.
+     * @throws IOException if an I/O error has occurred.
      */
     @Nonnull
-    ZipFile getZipFile() throws IOException;
+    SeekableZipArchive getSeekableArchive() throws IOException;
 }
@@ -0,0 +1,194 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.zip;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.FileObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * In-memory index of zip archive contents: a directory tree built from archive entries.
+ * Index is built once per archive version (see {@link ZipIndexKey}) and shared by all {@link ZippedFileObject}s
+ * of that archive, so listing a directory in archive doesn't require reading the whole archive again.
+ * <p>
+ * Tree nodes store only the last path segment, so common path prefixes are shared between entries.
+ * {@link ZippedFileObject}s are created lazily when directory children are requested for the first time.
+ */
+@ThreadSafe
+final class ZipIndex {
+    /**
+     * Path used for archive root.
+     */
+    static final String ROOT_PATH = "";
+
+    private static final char PATH_SEPARATOR_CHAR = ZipUtils.ZIP_PATH_SEPARATOR.charAt(0);
+    private static final String CURRENT_DIR_SEGMENT = ".";
+
+    private final FileObject archive;
+    private final ZipFileProvider archiveZipFileProvider;
+    private final Node root = new Node(null, ROOT_PATH, null, true);
+
+    /**
+     * @param archive zip archive represented as {@link FileObject}.
+     * @param archiveZipFileProvider {@link java.util.zip.ZipFile} provider for passed archive.
+     */
+    ZipIndex(@Nonnull FileObject archive, @Nonnull ZipFileProvider archiveZipFileProvider) {
+        if (!ZipUtils.isZipArchive(Objects.requireNonNull(archive))) {
+            throw new IllegalArgumentException(archive.toString());
+        }
+        this.archive = archive;
+        this.archiveZipFileProvider = Objects.requireNonNull(archiveZipFileProvider);
+    }
+
+    /**
+     * Adds an archive entry to this index. Parent directories which don't have their own entries in archive are
+     * created implicitly. Should be called only while building the index.
+     * @param entryName exactly the same value that {@link java.util.zip.ZipEntry#getName()} returned.
+     * @param isDirectory whether the entry is a directory.
+     */
+    void addEntry(@Nonnull String entryName, boolean isDirectory) {
+        Node current = root;
+        int length = entryName.length();
+        int segmentStart = 0;
+
+        while (segmentStart < length) {
+            int segmentEnd = entryName.indexOf(PATH_SEPARATOR_CHAR, segmentStart);
+            if (segmentEnd < 0) {
+                segmentEnd = length;
+            }
+
+            if (segmentEnd > segmentStart) {
+                String segment = entryName.substring(segmentStart, segmentEnd);
+                if (!segment.equals(CURRENT_DIR_SEGMENT)) {
+                    boolean isLastSegment = segmentEnd >= length - 1;
+                    current = isLastSegment
+                            ? current.addChild(segment, entryName, isDirectory || segmentEnd < length)
+                            : current.addChild(segment, null, true);
+                }
+            }
+
+            segmentStart = segmentEnd + 1;
+        }
+    }
+
+    /**
+     * @param directoryPath path in archive of a directory; {@link #ROOT_PATH} for archive top-level items.
+     * @return direct children of passed directory; empty list if directory is not found or empty.
+     */
+    @Nonnull
+    List<FileObject> getChildren(@Nonnull String directoryPath) {
+        Node directory = findNode(directoryPath);
+        if (directory == null || !directory.isDirectory) {
+            return new ArrayList<>();
+        }
+
+        synchronized (this) {
+            return new ArrayList<>(getChildFileObjects(directory));
+        }
+    }
+
+    @Nullable
+    private Node findNode(String path) {
+        Node current = root;
+        int length = path.length();
+        int segmentStart = 0;
+
+        while (current != null && segmentStart < length) {
+            int segmentEnd = path.indexOf(PATH_SEPARATOR_CHAR, segmentStart);
+            if (segmentEnd < 0) {
+                segmentEnd = length;
+            }
+            if (segmentEnd > segmentStart) {
+                String segment = path.substring(segmentStart, segmentEnd);
+                if (!segment.equals(CURRENT_DIR_SEGMENT)) {
+                    current = current.children != null ? current.children.get(segment) : null;
+                }
+            }
+            segmentStart = segmentEnd + 1;
+        }
+
+        return current;
+    }
+
+    private List<FileObject> getChildFileObjects(Node directory) {
+        if (directory.childFileObjects == null) {
+            List<FileObject> childFileObjects = new ArrayList<>(directory.children.size());
+            for (Node child : directory.children.values()) {
+                childFileObjects.add(getFileObject(child));
+            }
+            directory.childFileObjects = childFileObjects;
+        }
+        return directory.childFileObjects;
+    }
+
+    private FileObject getFileObject(Node node) {
+        if (node == root) {
+            return archive;
+        }
+        if (node.fileObject == null) {
+            node.fileObject = new ZippedFileObject(archive, node.getPathInArchive(), archiveZipFileProvider,
+                    node.isDirectory, getFileObject(node.parent));
+        }
+        return node.fileObject;
+    }
+
+
+    private static final class Node {
+        private final Node parent;
+        private final String name;
+        /**
+         * Name of archive entry; null for implicit directories (i.e. not present in archive as a separate entry).
+         */
+        private String entryName;
+        private boolean isDirectory;
+        private Map<String, Node> children;
+
+        // lazy-computed
+        private FileObject fileObject;
+        private List<FileObject> childFileObjects;
+
+        private Node(Node parent, String name, String entryName, boolean isDirectory) {
+            this.parent = parent;
+            this.name = name;
+            this.entryName = entryName;
+            this.isDirectory = isDirectory;
+        }
+
+        private Node addChild(String childName, String childEntryName, boolean isChildDirectory) {
+            if (children == null) {
+                children = new HashMap<>(4);
+                isDirectory = true; // file and directory with the same name; directory wins
+            }
+
+            Node child = children.get(childName);
+            if (child == null) {
+                child = new Node(this, childName, childEntryName, isChildDirectory);
+                children.put(childName, child);
+            } else {
+                if (child.entryName == null) {
+                    // implicitly created directory now has its own entry
+                    child.entryName = childEntryName;
+                }
+                child.isDirectory |= isChildDirectory;
+            }
+            return child;
+        }
+
+        private String getPathInArchive() {
+            if (entryName != null) {
+                return entryName;
+            }
+
+            StringBuilder path = new StringBuilder(name).append(ZipUtils.ZIP_PATH_SEPARATOR);
+            for (Node node = parent; node != null && node.parent != null; node = node.parent) {
+                path.insert(0, ZipUtils.ZIP_PATH_SEPARATOR).insert(0, node.name);
+            }
+            return path.toString();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.zip;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded cache of {@link ZipIndex} instances. Least recently used index is evicted when the cache is full.
+ */
+@ThreadSafe
+final class ZipIndexCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ZipIndexCache.class);
+
+    private final Map<ZipIndexKey, ZipIndex> indexes;
+
+    ZipIndexCache(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+        }
+        this.indexes = new LinkedHashMap<ZipIndexKey, ZipIndex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ZipIndexKey, ZipIndex> eldest) {
+                boolean remove = size() > maxSize;
+                if (remove) {
+                    LOGGER.debug("Evicting zip index: {}", eldest.getKey());
+                }
+                return remove;
+            }
+        };
+    }
+
+    @Nullable
+    synchronized ZipIndex get(@Nonnull ZipIndexKey key) {
+        return indexes.get(Objects.requireNonNull(key));
+    }
+
+    synchronized void put(@Nonnull ZipIndexKey key, @Nonnull ZipIndex index) {
+        indexes.put(Objects.requireNonNull(key), Objects.requireNonNull(index));
+    }
+}
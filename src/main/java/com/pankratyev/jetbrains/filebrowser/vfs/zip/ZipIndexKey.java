@@ -0,0 +1,111 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.zip;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.PersistentCache;
+import com.pankratyev.jetbrains.filebrowser.vfs.ftp.FtpFileAttributes;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+/**
+ * Identifies a particular version of zip archive: archive path plus its size and modification time.
+ * If archive is changed on disk its key changes too, so outdated {@link ZipIndex} instances are never used.
+ */
+final class ZipIndexKey {
+    private static final String NESTED_ARCHIVE_DELIMITER = "!" + ZipUtils.ZIP_PATH_SEPARATOR;
+
+    private final String path;
+    private final long size;
+    private final long lastModified;
+
+    ZipIndexKey(@Nonnull String path, long size, long lastModified) {
+        this.path = Objects.requireNonNull(path);
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @param archive archive file stored on local disk.
+     * @return key for the current state of passed file.
+     */
+    @Nonnull
+    static ZipIndexKey forFile(@Nonnull Path archive) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(archive, BasicFileAttributes.class);
+        return new ZipIndexKey(archive.toAbsolutePath().toString(), attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * Nested archive is identified by its parent archive version and path in parent archive. This way a key for
+     * nested archive can be obtained without extracting it.
+     * @param pathInArchive path of nested archive in the archive identified by this key.
+     * @return key for nested archive.
+     */
+    @Nonnull
+    ZipIndexKey nested(@Nonnull String pathInArchive) {
+        return new ZipIndexKey(path + NESTED_ARCHIVE_DELIMITER + pathInArchive, size, lastModified);
+    }
+
+    /**
+     * @return key identifying archive contents in {@link PersistentCache}; null if archive size or modification time
+     * is unknown.
+     */
+    @Nullable
+    String getContentKey() {
+        if (size == FtpFileAttributes.UNKNOWN || lastModified == FtpFileAttributes.UNKNOWN) {
+            return null;
+        }
+        return "zip|" + path + "|" + size + "|" + lastModified;
+    }
+
+    @Nonnull
+    String getPath() {
+        return path;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        ZipIndexKey key = (ZipIndexKey) o;
+
+        //noinspection SimplifiableIfStatement
+        if (size != key.size || lastModified != key.lastModified) {
+            return false;
+        }
+        return path.equals(key.path);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = path.hashCode();
+        result = 31 * result + (int) (size ^ (size >>> 32));
+        result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ZipIndexKey{" +
+                "path='" + path + '\'' +
+                ", size=" + size +
+                ", lastModified=" + lastModified +
+                '}';
+    }
+}
@@ -4,25 +4,31 @@ import com.pankratyev.jetbrains.filebrowser.ui.filetype.ArchiveFileType;
 import com.pankratyev.jetbrains.filebrowser.ui.filetype.provider.ExtensionBasedFileTypeProvider;
 import com.pankratyev.jetbrains.filebrowser.ui.filetype.provider.FileTypeProvider;
 import com.pankratyev.jetbrains.filebrowser.vfs.FileObject;
-import com.pankratyev.jetbrains.filebrowser.vfs.VfsUtils;
+import com.pankratyev.jetbrains.filebrowser.vfs.PersistentCache;
+import com.pankratyev.jetbrains.filebrowser.vfs.SeekableSource;
+import com.pankratyev.jetbrains.filebrowser.vfs.ftp.FtpFileAttributes;
 import com.pankratyev.jetbrains.filebrowser.vfs.ftp.FtpFileObject;
 import com.pankratyev.jetbrains.filebrowser.vfs.local.LocalFileObject;
-import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 public final class ZipUtils {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ZipUtils.class);
+
     /**
      * ZIP spec (4.4.17 file name): All slashes MUST be forward slashes '/' as opposed to
      * backwards slashes '\' for compatibility with Amiga and UNIX file systems etc.
@@ -32,6 +38,25 @@ public final class ZipUtils {
     private static final FileTypeProvider FILE_TYPE_PROVIDER = new ExtensionBasedFileTypeProvider();
     private static final SubArchiveExtractManager SUB_ARCHIVE_EXTRACT_MANAGER = new SubArchiveExtractManager();
 
+    /**
+     * Max count of archives which contents indexes are kept in memory.
+     */
+    private static final int ZIP_INDEX_CACHE_SIZE = 16;
+    private static final ZipIndexCache ZIP_INDEX_CACHE = new ZipIndexCache(ZIP_INDEX_CACHE_SIZE);
+
+    /**
+     * Max count of {@link ZipFile}s kept open to avoid reading archive central directory on each access.
+     */
+    private static final int MAX_OPEN_ZIP_FILES = 8;
+    private static final ZipFilePool ZIP_FILE_POOL = new ZipFilePool(MAX_OPEN_ZIP_FILES);
+
+    /**
+     * Nested archives not larger than this (in bytes) are read into memory instead of being extracted to temp
+     * directory. May be overridden with "filebrowser.zip.nestedArchiveInMemoryLimit" system property.
+     */
+    private static final long NESTED_ARCHIVE_IN_MEMORY_LIMIT =
+            Long.getLong("filebrowser.zip.nestedArchiveInMemoryLimit", 4 * 1024 * 1024);
+
     private ZipUtils() {
     }
 
@@ -75,154 +100,336 @@ public final class ZipUtils {
 
     private static List<FileObject> doGetZipArchiveTopLevelChildren(FileObject archive,
             ZipFileProvider archiveZipFileProvider) throws IOException {
-        try (ZipFile zipFile = archiveZipFileProvider.getZipFile()) {
-            List<FileObject> archiveContents = ZipUtils.getAllZipChildren(archive, zipFile, archiveZipFileProvider);
-
-            for (Iterator<FileObject> iter = archiveContents.iterator(); iter.hasNext(); ) {
-                ZippedFileObject zippedFileObject = (ZippedFileObject) iter.next();
-                if (ZipUtils.getNestingLevel(zippedFileObject.getPathInArchive()) > 0) {
-                    // leave only top-level files in archive
-                    iter.remove();
-                }
-            }
-
-            return archiveContents;
-        }
+        return getZipIndex(archive, archiveZipFileProvider).getChildren(ZipIndex.ROOT_PATH);
     }
 
 
     /**
-     * @param asFileObject zip archive represented as {@link FileObject}.
-     * @param asZipFile zip archive represented as {@link ZipFile}; must not be closed.
-     * @return zip archive contents (not only top level items but all of them).
+     * Provides an index of archive contents. Index is built only if it's not present in cache for the current
+     * archive version.
+     * @param archive zip archive represented as {@link FileObject}.
+     * @param archiveZipFileProvider {@link ZipFile} provider for passed archive.
+     * @return zip archive contents index.
      */
     @Nonnull
-    static List<FileObject> getAllZipChildren(@Nonnull FileObject asFileObject, @Nonnull ZipFile asZipFile,
-            ZipFileProvider archiveZipFileProvider) {
-        Enumeration<? extends ZipEntry> entriesEnumeration = asZipFile.entries();
-
-        Map<String, ZipEntry> entriesByPaths = new HashMap<>();
-        while (entriesEnumeration.hasMoreElements()) {
-            ZipEntry entry = entriesEnumeration.nextElement();
-            String name = entry.getName();
-            if (!name.equals(ZIP_PATH_SEPARATOR)) {
-                entriesByPaths.put(name, entry);
-            }
+    static ZipIndex getZipIndex(@Nonnull FileObject archive, @Nonnull ZipFileProvider archiveZipFileProvider)
+            throws IOException {
+        ZipIndexKey key = archiveZipFileProvider.getIndexKey();
+        ZipIndex index = ZIP_INDEX_CACHE.get(key);
+        if (index != null) {
+            return index;
         }
 
-        return processEntries(entriesByPaths, asFileObject, archiveZipFileProvider);
+        LOGGER.debug("Building zip index: {}", key);
+        index = new ZipIndex(archive, archiveZipFileProvider);
+        archiveZipFileProvider.addEntriesTo(index);
+        ZIP_INDEX_CACHE.put(key, index);
+        return index;
     }
 
-    private static List<FileObject> processEntries(Map<String, ZipEntry> entriesByPaths, FileObject parentArchive,
-            ZipFileProvider archiveZipFileProvider) {
-        int currentNestingLevel = 0;
-        Map<String, FileObject> fileObjectsByPaths = new HashMap<>();
-
-        // the idea is to iteratively process entries starting from top-level ones
-        while (!entriesByPaths.isEmpty()) {
-            for (Iterator<Map.Entry<String, ZipEntry>> iter = entriesByPaths.entrySet().iterator(); iter.hasNext(); ) {
-                Map.Entry<String, ZipEntry> entry = iter.next();
-
-                String path = entry.getKey();
-                if (path.equals(ZIP_PATH_SEPARATOR)) {
-                    // don't process '/' entry
-                    iter.remove();
-                    continue;
-                }
-
-                int pathNestingLevel = getNestingLevel(path);
-
-                if (pathNestingLevel == currentNestingLevel) {
-                    iter.remove(); // element is processed
-
-                    String normalizedPath = VfsUtils.normalizePath(path, ZIP_PATH_SEPARATOR);
-                    String parentDirPath = StringUtils.substringBeforeLast(normalizedPath, ZIP_PATH_SEPARATOR);
-                    FileObject parent = fileObjectsByPaths.get(parentDirPath);
-                    if (parent == null) {
-                        parent = parentArchive;
-                    }
-
-                    ZippedFileObject fileObject = new ZippedFileObject(
-                            parentArchive, path, archiveZipFileProvider, entry.getValue().isDirectory(), parent);
-                    fileObjectsByPaths.put(normalizedPath, fileObject);
-                }
+    /**
+     * Adds archive entries to index in a single pass over them.
+     * @param zipFileHandle handle of zip archive; it is closed by this method.
+     */
+    private static void addEntriesTo(@Nonnull ZipIndex index, @Nonnull ZipFileHandle zipFileHandle) {
+        try (ZipFileHandle handle = zipFileHandle) {
+            Enumeration<? extends ZipEntry> entriesEnumeration = handle.getZipFile().entries();
+            while (entriesEnumeration.hasMoreElements()) {
+                ZipEntry entry = entriesEnumeration.nextElement();
+                index.addEntry(entry.getName(), entry.isDirectory());
             }
-
-            currentNestingLevel++;
         }
-
-        return new ArrayList<>(fileObjectsByPaths.values());
     }
 
-
     /**
-     * @param path path in archive (with {@link #ZIP_PATH_SEPARATOR} separators).
-     * @return nesting level of passed path (0 for top-level paths).
+     * @param zipFileHandle handle of zip archive; it is owned by returned stream or closed if no stream is returned.
+     * @return stream of entry contents; null if there's no entry with passed name.
      */
-    static int getNestingLevel(@Nonnull String path) {
-        path = VfsUtils.normalizePath(path, ZIP_PATH_SEPARATOR);
-        return StringUtils.countMatches(path, ZIP_PATH_SEPARATOR);
+    @Nullable
+    static InputStream getEntryInputStream(@Nonnull ZipFileHandle zipFileHandle, @Nonnull String entryName)
+            throws IOException {
+        try {
+            ZipFile zip = zipFileHandle.getZipFile();
+            ZipEntry entry = zip.getEntry(entryName);
+            if (entry == null) {
+                zipFileHandle.close();
+                return null;
+            }
+            return new ZipEntryInputStream(zipFileHandle, new BufferedInputStream(zip.getInputStream(entry)));
+        } catch (IOException | RuntimeException e) {
+            zipFileHandle.close();
+            throw e;
+        }
     }
 
 
     public static final class LocalArchiveZipFileProvider implements ZipFileProvider {
         private final LocalFileObject fileObject;
 
+        private ZipIndexKey seekableArchiveKey; // guarded by this
+        private SeekableZipArchive seekableArchive; // guarded by this
+
         public LocalArchiveZipFileProvider(@Nonnull LocalFileObject fileObject) {
             this.fileObject = Objects.requireNonNull(fileObject);
         }
 
+        /**
+         * @return handle of {@link ZipFile} for current archive.
+         * @throws IllegalStateException if this {@link FileObject} is not a zip archive.
+         */
+        @Nonnull
+        public ZipFileHandle getZipFile() throws IOException {
+            if (!isZipArchive(fileObject)) {
+                throw new IllegalStateException("Not a zip archive: " + this);
+            }
+            return ZIP_FILE_POOL.acquire(fileObject.getPath());
+        }
+
+        @Nonnull
+        @Override
+        public ZipIndexKey getIndexKey() throws IOException {
+            return ZipIndexKey.forFile(fileObject.getPath());
+        }
+
+        @Override
+        public void addEntriesTo(@Nonnull ZipIndex index) throws IOException {
+            ZipUtils.addEntriesTo(index, getZipFile());
+        }
+
+        @Nullable
+        @Override
+        public InputStream getEntryInputStream(@Nonnull String entryName) throws IOException {
+            return ZipUtils.getEntryInputStream(getZipFile(), entryName);
+        }
+
         @Nonnull
         @Override
-        public ZipFile getZipFile() throws IOException {
+        public synchronized SeekableZipArchive getSeekableArchive() throws IOException {
             if (!isZipArchive(fileObject)) {
                 throw new IllegalStateException("Not a zip archive: " + this);
             }
-            return new ZipFile(fileObject.getPath().toFile());
+
+            ZipIndexKey key = getIndexKey();
+            if (!key.equals(seekableArchiveKey)) {
+                seekableArchive = new SeekableZipArchive(new FileSeekableSource(fileObject.getPath()));
+                seekableArchiveKey = key;
+            }
+            return seekableArchive;
         }
     }
 
+    /**
+     * If FTP archive local copy is present (or can be restored from persistent cache) it is used; otherwise only
+     * archive central directory and requested entries are transferred from FTP server.
+     */
     public static final class FtpArchiveZipFileProvider implements ZipFileProvider {
         private final FtpFileObject fileObject;
 
+        private FtpFileAttributes remoteAttributes; // guarded by this
+        private ZipIndexKey remoteKey; // guarded by this
+        private SeekableZipArchive remoteArchive; // guarded by this
+
+        private ZipIndexKey localCopyArchiveKey; // guarded by this
+        private SeekableZipArchive localCopyArchive; // guarded by this
+
         FtpArchiveZipFileProvider(@Nonnull FtpFileObject fileObject) {
             this.fileObject = Objects.requireNonNull(fileObject);
         }
 
         @Nonnull
         @Override
-        public ZipFile getZipFile() throws IOException {
-            if (!isZipArchive(fileObject)) {
-                throw new IllegalStateException("Not a zip archive: " + this);
+        public ZipIndexKey getIndexKey() throws IOException {
+            Path localCopy = getLocalCopy();
+            if (localCopy != null) {
+                return ZipIndexKey.forFile(localCopy);
             }
+            return getRemoteKey();
+        }
 
+        /**
+         * @return existing local copy of archive or the one restored from persistent cache; null if not present.
+         */
+        @Nullable
+        private Path getLocalCopy() throws IOException {
             Path localCopy = fileObject.getLocalCopy();
+            if (localCopy == null && PersistentCache.getInstance() != null) {
+                localCopy = fileObject.restoreLocalCopy(getRemoteAttributes());
+            }
+            return localCopy;
+        }
+
+        @Override
+        public void addEntriesTo(@Nonnull ZipIndex index) throws IOException {
+            Path localCopy = getLocalCopyIfRemoteUnavailable();
+            if (localCopy != null) {
+                ZipUtils.addEntriesTo(index, ZIP_FILE_POOL.acquire(localCopy));
+            } else {
+                getRemoteArchive().addEntriesTo(index);
+            }
+        }
+
+        @Nullable
+        @Override
+        public InputStream getEntryInputStream(@Nonnull String entryName) throws IOException {
+            Path localCopy = getLocalCopyIfRemoteUnavailable();
+            if (localCopy != null) {
+                return ZipUtils.getEntryInputStream(ZIP_FILE_POOL.acquire(localCopy), entryName);
+            }
+            return getRemoteArchive().getEntryInputStream(entryName);
+        }
+
+        @Nonnull
+        @Override
+        public synchronized SeekableZipArchive getSeekableArchive() throws IOException {
+            Path localCopy = getLocalCopyIfRemoteUnavailable();
             if (localCopy == null) {
-                throw new IOException("No local copy available for archive");
+                return getRemoteArchive();
+            }
+
+            ZipIndexKey key = ZipIndexKey.forFile(localCopy);
+            if (!key.equals(localCopyArchiveKey)) {
+                localCopyArchive = new SeekableZipArchive(new FileSeekableSource(localCopy));
+                localCopyArchiveKey = key;
+            }
+            return localCopyArchive;
+        }
+
+        /**
+         * @return existing local copy of archive; or a new one if archive can't be read remotely; or null if
+         * archive should be read remotely.
+         */
+        @Nullable
+        private Path getLocalCopyIfRemoteUnavailable() throws IOException {
+            if (!isZipArchive(fileObject)) {
+                throw new IllegalStateException("Not a zip archive: " + this);
+            }
+
+            Path localCopy = getLocalCopy();
+            if (localCopy != null) {
+                return localCopy;
+            }
+            if (getRemoteArchive() == null) {
+                LOGGER.debug("Archive size is unknown, a local copy will be used: {}", fileObject);
+                return fileObject.getOrCreateLocalCopy();
+            }
+            return null;
+        }
+
+        private synchronized FtpFileAttributes getRemoteAttributes() throws IOException {
+            if (remoteAttributes == null) {
+                remoteAttributes = fileObject.getAttributes();
+            }
+            return remoteAttributes;
+        }
+
+        private synchronized ZipIndexKey getRemoteKey() throws IOException {
+            if (remoteKey == null) {
+                FtpFileAttributes attributes = getRemoteAttributes();
+                remoteKey = new ZipIndexKey(fileObject.getUrl(), attributes.getSize(), attributes.getLastModified());
+                if (attributes.getSize() != FtpFileAttributes.UNKNOWN) {
+                    remoteArchive = new SeekableZipArchive(fileObject.getRemoteSource(attributes.getSize()));
+                }
             }
-            return new ZipFile(localCopy.toFile());
+            return remoteKey;
+        }
+
+        /**
+         * @return remote archive; null if it can't be read remotely (i.e. its size is unknown).
+         */
+        @Nullable
+        private synchronized SeekableZipArchive getRemoteArchive() throws IOException {
+            getRemoteKey();
+            return remoteArchive;
         }
     }
 
+    /**
+     * Nested archive is read from memory if it is small enough; if it is stored in parent archive without compression
+     * it is read directly from parent archive. Otherwise it is extracted to temp directory.
+     */
     public static final class ZippedArchiveZipFileProvider implements ZipFileProvider {
         private final ZippedFileObject fileObject;
         private final SubArchiveExtractManager subArchiveExtractManager;
 
+        private ZipIndexKey seekableArchiveKey; // guarded by this
+        private SeekableZipArchive seekableArchive; // guarded by this
+        private Path extractedSubArchive; // guarded by this
+
         ZippedArchiveZipFileProvider(@Nonnull ZippedFileObject fileObject,
                 @Nonnull SubArchiveExtractManager subArchiveExtractManager) {
             this.fileObject = Objects.requireNonNull(fileObject);
             this.subArchiveExtractManager = Objects.requireNonNull(subArchiveExtractManager);
         }
 
+        @Override
+        public void addEntriesTo(@Nonnull ZipIndex index) throws IOException {
+            getSeekableArchive().addEntriesTo(index);
+        }
+
+        @Nullable
+        @Override
+        public InputStream getEntryInputStream(@Nonnull String entryName) throws IOException {
+            return getSeekableArchive().getEntryInputStream(entryName);
+        }
+
         @Nonnull
         @Override
-        public ZipFile getZipFile() throws IOException {
+        public synchronized SeekableZipArchive getSeekableArchive() throws IOException {
             if (!isZipArchive(fileObject)) {
                 throw new IllegalStateException("Not a zip archive: " + this);
             }
 
-            Path extractedSubArchive = subArchiveExtractManager.getExtractedSubArchive(fileObject);
-            return new ZipFile(extractedSubArchive.toFile());
+            ZipIndexKey key = getIndexKey();
+            // extracted sub-archive may be evicted from disk cache
+            boolean extractedSubArchiveEvicted = extractedSubArchive != null && !Files.exists(extractedSubArchive);
+            if (!key.equals(seekableArchiveKey) || extractedSubArchiveEvicted) {
+                seekableArchive = new SeekableZipArchive(openSource());
+                seekableArchiveKey = key;
+            }
+            return seekableArchive;
+        }
+
+        private SeekableSource openSource() throws IOException {
+            extractedSubArchive = null;
+            ZipFileProvider parentProvider = fileObject.getParentArchiveZipFileProvider();
+            SeekableZipArchive parentArchive = parentProvider.getSeekableArchive();
+            String pathInArchive = fileObject.getPathInArchive();
+            ZipCentralDirectory.Entry entry = parentArchive.getEntry(pathInArchive);
+            if (entry == null) {
+                throw new IOException(pathInArchive + " not found in parent archive");
+            }
+
+            if (entry.getSize() <= NESTED_ARCHIVE_IN_MEMORY_LIMIT) {
+                LOGGER.debug("Reading nested archive into memory: {}", fileObject);
+                byte[] bytes = new byte[(int) entry.getSize()];
+                try (InputStream is = parentProvider.getEntryInputStream(pathInArchive)) {
+                    if (is == null) {
+                        throw new IOException(pathInArchive + " not found in parent archive");
+                    }
+                    IOUtils.readFully(is, bytes);
+                }
+                return new ByteArraySeekableSource(bytes);
+            }
+
+            if (entry.getMethod() == ZipCentralDirectory.METHOD_STORED) {
+                LOGGER.debug("Reading stored nested archive from parent archive: {}", fileObject);
+                SeekableSource parentSource = parentArchive.getSource();
+                long dataOffset = ZipCentralDirectory.getDataOffset(parentSource, entry);
+                return new RangeSeekableSource(parentSource, dataOffset, entry.getSize());
+            }
+
+            extractedSubArchive = subArchiveExtractManager.getExtractedSubArchive(fileObject);
+            return new FileSeekableSource(extractedSubArchive);
+        }
+
+        /**
+         * Key of nested archive is derived from the parent archive key so nested archive is not read
+         * if its index is already cached.
+         */
+        @Nonnull
+        @Override
+        public ZipIndexKey getIndexKey() throws IOException {
+            return fileObject.getParentArchiveIndexKey().nested(fileObject.getPathInArchive());
         }
     }
 }
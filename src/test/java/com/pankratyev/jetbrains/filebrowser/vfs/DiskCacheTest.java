@@ -0,0 +1,59 @@
+package com.pankratyev.jetbrains.filebrowser.vfs;
+
+import com.pankratyev.jetbrains.filebrowser.TestUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class DiskCacheTest {
+    @Test
+    public void testLeastRecentlyUsedFileEvicted() throws IOException {
+        Path dir = Files.createTempDirectory("DiskCacheTest.testLeastRecentlyUsedFileEvicted");
+        try {
+            DiskCache cache = new DiskCache(20);
+            Path first = Files.write(dir.resolve("first"), new byte[10]);
+            Path second = Files.write(dir.resolve("second"), new byte[10]);
+            Path third = Files.write(dir.resolve("third"), new byte[10]);
+
+            cache.put(first);
+            cache.put(second);
+            assertTrue(cache.touch(first)); // second is least recently used now
+            cache.put(third);
+            cache.evictExcessive();
+
+            assertTrue(Files.exists(first));
+            assertFalse(Files.exists(second));
+            assertTrue(Files.exists(third));
+            assertEquals(20, cache.getSize());
+            assertEquals(1, cache.getEvictionCount());
+
+            assertFalse(cache.touch(second));
+            assertEquals(1, cache.getHitCount());
+            assertEquals(1, cache.getMissCount());
+        } finally {
+            TestUtils.deleteFiles(dir);
+        }
+    }
+
+    @Test
+    public void testRemoveDirectory() throws IOException {
+        Path dir = Files.createTempDirectory("DiskCacheTest.testRemoveDirectory");
+        try {
+            DiskCache cache = new DiskCache(100);
+            Path subDir = Files.createDirectory(dir.resolve("sub"));
+            cache.put(Files.write(subDir.resolve("file1"), new byte[10]));
+            cache.put(Files.write(dir.resolve("file2"), new byte[10]));
+
+            cache.remove(subDir);
+            assertEquals(10, cache.getSize());
+        } finally {
+            TestUtils.deleteFiles(dir);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.pankratyev.jetbrains.filebrowser.vfs;
+
+import com.pankratyev.jetbrains.filebrowser.TestUtils;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public final class PersistentCacheTest {
+    @Test
+    public void testContentsLoadedOnce() throws IOException {
+        Path dir = Files.createTempDirectory("PersistentCacheTest.testContentsLoadedOnce");
+        try {
+            final AtomicInteger loadCount = new AtomicInteger();
+            PersistentCache.Loader loader = new PersistentCache.Loader() {
+                @Override
+                public void load(@Nonnull OutputStream os) throws IOException {
+                    loadCount.incrementAndGet();
+                    os.write("contents".getBytes(StandardCharsets.UTF_8));
+                }
+            };
+
+            assertNull(new PersistentCache(dir).get("key"));
+            Path file = new PersistentCache(dir).getOrLoad("key", loader);
+            // another cache instance (e.g. in another process) uses the same contents
+            assertEquals(file, new PersistentCache(dir).getOrLoad("key", loader));
+            assertEquals(file, new PersistentCache(dir).get("key"));
+            assertEquals(1, loadCount.get());
+            assertEquals("contents", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            // neither lock nor temp files are left
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                assertEquals(Collections.singletonList(file), toList(files));
+            }
+        } finally {
+            TestUtils.deleteFiles(dir);
+        }
+    }
+
+    @Test
+    public void testFailedLoadNotStored() throws IOException {
+        Path dir = Files.createTempDirectory("PersistentCacheTest.testFailedLoadNotStored");
+        try {
+            PersistentCache cache = new PersistentCache(dir);
+            try {
+                cache.getOrLoad("key", new PersistentCache.Loader() {
+                    @Override
+                    public void load(@Nonnull OutputStream os) throws IOException {
+                        os.write(1);
+                        throw new IOException("connection lost");
+                    }
+                });
+                fail();
+            } catch (IOException expected) {
+                // expected
+            }
+            assertNull(cache.get("key"));
+        } finally {
+            TestUtils.deleteFiles(dir);
+        }
+    }
+
+    private static List<Path> toList(DirectoryStream<Path> files) {
+        List<Path> list = new ArrayList<>();
+        for (Path file : files) {
+            list.add(file);
+        }
+        return list;
+    }
+}
@@ -46,4 +46,10 @@ public class StubFileObject implements FileObject {
     public InputStream getInputStream() throws IOException {
         return null;
     }
+
+    @Nullable
+    @Override
+    public InputStream getHeadInputStream(long maxLength) throws IOException {
+        return null;
+    }
 }
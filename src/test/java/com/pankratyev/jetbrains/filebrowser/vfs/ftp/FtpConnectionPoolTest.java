@@ -0,0 +1,330 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class FtpConnectionPoolTest {
+    private static final long IDLE_TIMEOUT = 60 * 1000;
+
+    @Test
+    public void testConnectionReused() throws IOException {
+        StubConnectionFactory factory = new StubConnectionFactory();
+        FtpConnectionPool pool = new FtpConnectionPool(factory, 2, IDLE_TIMEOUT, 100);
+        try {
+            FTPClient client = pool.borrow(TransferPriority.PREVIEW);
+            pool.release(client, true);
+            assertSame(client, pool.borrow(TransferPriority.PREVIEW));
+            assertEquals(1, factory.createdCount);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testNotReusableConnectionClosed() throws IOException {
+        StubConnectionFactory factory = new StubConnectionFactory();
+        FtpConnectionPool pool = new FtpConnectionPool(factory, 2, IDLE_TIMEOUT, 100);
+        try {
+            StubFtpClient client = (StubFtpClient) pool.borrow(TransferPriority.PREVIEW);
+            pool.release(client, false);
+            assertFalse(client.isConnected());
+            assertEquals(0, pool.getOpenedConnectionsCount());
+            assertNotSame(client, pool.borrow(TransferPriority.PREVIEW));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testMaxConnections() throws IOException {
+        FtpConnectionPool pool = new FtpConnectionPool(new StubConnectionFactory(), 1, IDLE_TIMEOUT, 100);
+        try {
+            pool.borrow(TransferPriority.PREVIEW);
+            try {
+                pool.borrow(TransferPriority.PREVIEW);
+                fail();
+            } catch (IOException expected) {
+                // the only connection is borrowed
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testReservedConnectionNotBorrowed() throws IOException {
+        FtpConnectionPool pool = new FtpConnectionPool(new StubConnectionFactory(), 2, IDLE_TIMEOUT, 100);
+        try {
+            FTPClient client = pool.tryBorrow(TransferPriority.BACKGROUND, 1);
+            assertNotNull(client);
+            assertNull(pool.tryBorrow(TransferPriority.BACKGROUND, 1)); // the last connection is reserved
+            pool.release(client, true);
+            assertSame(client, pool.tryBorrow(TransferPriority.BACKGROUND, 1));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testHigherPriorityServedFirst() throws Exception {
+        FtpConnectionPool pool = new FtpConnectionPool(new StubConnectionFactory(), 1, IDLE_TIMEOUT, 5000);
+        try {
+            FTPClient client = pool.borrow(TransferPriority.PREVIEW);
+            Borrower background = new Borrower(pool, TransferPriority.BACKGROUND);
+            background.start();
+            waitForQueueDepth(pool, TransferPriority.BACKGROUND, 1);
+            Borrower listing = new Borrower(pool, TransferPriority.LISTING);
+            listing.start();
+            waitForQueueDepth(pool, TransferPriority.LISTING, 1);
+
+            pool.release(client, true);
+            listing.join();
+            assertSame(client, listing.client);
+            assertEquals(1, pool.getQueueDepth(TransferPriority.BACKGROUND));
+
+            pool.release(client, true);
+            background.join();
+            assertSame(client, background.client);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testBackgroundTransferPreempted() throws Exception {
+        FtpConnectionPool pool = new FtpConnectionPool(new StubConnectionFactory(), 1, IDLE_TIMEOUT, 5000);
+        try {
+            StubFtpClient backgroundClient = (StubFtpClient) pool.tryBorrow(TransferPriority.BACKGROUND, 0);
+            assertNotNull(backgroundClient);
+            Borrower listing = new Borrower(pool, TransferPriority.LISTING);
+            listing.start();
+            while (!backgroundClient.cancelled) {
+                Thread.sleep(10);
+            }
+
+            // the owner of preempted connection releases it after its operation fails
+            pool.release(backgroundClient, true);
+            listing.join();
+            assertNotNull(listing.client);
+            assertNotSame(backgroundClient, listing.client);
+            assertFalse(backgroundClient.isConnected());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testInterruptedOperationCancelled() throws IOException {
+        FtpConnectionPool pool = new FtpConnectionPool(new StubConnectionFactory(), 1, IDLE_TIMEOUT, 100);
+        try {
+            StubFtpClient client = (StubFtpClient) pool.borrow(TransferPriority.LISTING);
+            Thread.currentThread().interrupt();
+            try {
+                long waitUntil = System.currentTimeMillis() + 5000;
+                while (!client.cancelled && System.currentTimeMillis() < waitUntil) {
+                    Thread.yield();
+                }
+                assertTrue(client.cancelled);
+            } finally {
+                Thread.interrupted();
+            }
+
+            pool.release(client, true);
+            assertFalse(client.isConnected());
+            assertEquals(0, pool.getOpenedConnectionsCount());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testInterruptionCheckedOnlyWhileBorrowed() throws IOException {
+        FtpConnectionPool pool = new FtpConnectionPool(new StubConnectionFactory(), 2, IDLE_TIMEOUT, 100);
+        try {
+            assertFalse(pool.isInterruptionCheckScheduled());
+            StubFtpClient client1 = (StubFtpClient) pool.borrow(TransferPriority.LISTING);
+            StubFtpClient client2 = (StubFtpClient) pool.borrow(TransferPriority.LISTING);
+            assertTrue(pool.isInterruptionCheckScheduled());
+            pool.release(client1, true);
+            assertTrue(pool.isInterruptionCheckScheduled());
+            pool.release(client2, true);
+            assertFalse(pool.isInterruptionCheckScheduled());
+
+            pool.borrow(TransferPriority.LISTING);
+            assertTrue(pool.isInterruptionCheckScheduled());
+        } finally {
+            pool.close();
+        }
+        // closed with a borrowed connection
+        assertFalse(pool.isInterruptionCheckScheduled());
+    }
+
+    @Test
+    public void testIdleConnectionEvicted() throws IOException {
+        FtpConnectionPool pool = new FtpConnectionPool(new StubConnectionFactory(), 2, IDLE_TIMEOUT, 100);
+        try {
+            StubFtpClient client = (StubFtpClient) pool.borrow(TransferPriority.PREVIEW);
+            pool.release(client, true);
+
+            pool.evictIdle(System.currentTimeMillis());
+            assertTrue(client.isConnected());
+            pool.evictIdle(System.currentTimeMillis() + IDLE_TIMEOUT);
+            assertFalse(client.isConnected());
+            assertEquals(0, pool.getOpenedConnectionsCount());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testMinIdleConnectionsKeptAlive() throws IOException {
+        FtpConnectionPool pool = new FtpConnectionPool(new StubConnectionFactory(), 2, IDLE_TIMEOUT, 100, 1, 1000);
+        try {
+            StubFtpClient client1 = (StubFtpClient) pool.borrow(TransferPriority.PREVIEW);
+            StubFtpClient client2 = (StubFtpClient) pool.borrow(TransferPriority.PREVIEW);
+            pool.release(client1, true);
+            pool.release(client2, true);
+
+            pool.evictIdle(System.currentTimeMillis() + IDLE_TIMEOUT);
+            assertFalse(client1.isConnected());
+            assertTrue(client2.isConnected());
+
+            pool.keepAlive(System.currentTimeMillis() + 1000);
+            assertEquals(1, client2.noOpCount);
+            assertEquals(0, pool.getReconnectCount());
+
+            // broken connection found by keep-alive is closed
+            client2.connected = false;
+            pool.keepAlive(System.currentTimeMillis() + 2000);
+            assertEquals(0, pool.getOpenedConnectionsCount());
+            assertEquals(1, pool.getReconnectCount());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        StubConnectionFactory factory = new StubConnectionFactory();
+        FtpConnectionPool pool = new FtpConnectionPool(factory, 2, IDLE_TIMEOUT, 5000);
+        try {
+            pool.warmUp(3);
+            assertEquals(2, pool.getOpenedConnectionsCount());
+            FTPClient client1 = pool.borrow(TransferPriority.PREVIEW);
+            FTPClient client2 = pool.borrow(TransferPriority.PREVIEW);
+            assertNotSame(client1, client2);
+            assertEquals(2, factory.createdCount);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testWarmedUpConnectionWakesWaitingBorrower() throws Exception {
+        StubConnectionFactory factory = new StubConnectionFactory();
+        factory.creationAllowed = new CountDownLatch(1);
+        FtpConnectionPool pool = new FtpConnectionPool(factory, 1, IDLE_TIMEOUT, 5000);
+        try {
+            pool.warmUp(1); // the pool is full while the connection is being opened
+            Borrower borrower = new Borrower(pool, TransferPriority.PREVIEW);
+            borrower.start();
+            waitForQueueDepth(pool, TransferPriority.PREVIEW, 1);
+
+            factory.creationAllowed.countDown();
+            borrower.join(1000);
+            assertFalse(borrower.isAlive());
+            assertNotNull(borrower.client);
+            assertEquals(1, factory.createdCount);
+        } finally {
+            pool.close();
+        }
+    }
+
+    private static void waitForQueueDepth(FtpConnectionPool pool, TransferPriority priority, int depth)
+            throws InterruptedException {
+        while (pool.getQueueDepth(priority) != depth) {
+            Thread.sleep(10);
+        }
+    }
+
+
+    private static final class Borrower extends Thread {
+        private final FtpConnectionPool pool;
+        private final TransferPriority priority;
+        private volatile FTPClient client;
+
+        private Borrower(FtpConnectionPool pool, TransferPriority priority) {
+            this.pool = pool;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            try {
+                client = pool.borrow(priority);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static final class StubConnectionFactory implements FtpConnectionPool.ConnectionFactory {
+        private volatile int createdCount = 0;
+        private volatile CountDownLatch creationAllowed;
+
+        @Nonnull
+        @Override
+        public synchronized InterruptibleFtpClient create() throws IOException {
+            if (creationAllowed != null) {
+                try {
+                    creationAllowed.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            createdCount++;
+            return new StubFtpClient();
+        }
+    }
+
+    private static final class StubFtpClient extends InterruptibleFtpClient {
+        private volatile boolean connected = true;
+        private volatile boolean cancelled = false;
+        private volatile int noOpCount = 0;
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean sendNoOp() {
+            noOpCount++;
+            return connected;
+        }
+
+        @Override
+        public void disconnect() {
+            connected = false;
+        }
+
+        @Override
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.FileObject;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public final class FtpFileObjectTest {
+    @Test
+    public void testParentComputedFromPath() {
+        FtpClient client = new FtpClient("", 0, null, null);
+        try {
+            FtpFileObject fileObject = new FtpFileObject(client, "/dir/subdir/", null, true,
+                    client.getLocalCopyManager());
+
+            // no connection is established
+            FileObject parent = fileObject.getParent();
+            assertNotNull(parent);
+            assertEquals("/dir", parent.getFullName());
+            FileObject root = parent.getParent();
+            assertNotNull(root);
+            assertEquals("/", root.getFullName());
+            assertFalse(root.hasParent());
+            assertNull(root.getParent());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testListedAttributesUsed() throws IOException {
+        FtpClient client = new FtpClient("", 0, null, null);
+        try {
+            FtpFileAttributes attributes = new FtpFileAttributes(10, 1000);
+            FtpFileObject fileObject = new FtpFileObject(client, "/dir/file", null, false,
+                    client.getLocalCopyManager(), attributes, "rw-r--r--");
+
+            // no connection is established: attributes are known from listing
+            assertSame(attributes, fileObject.getAttributes());
+            assertEquals("rw-r--r--", fileObject.getPermissions());
+        } finally {
+            client.close();
+        }
+    }
+}
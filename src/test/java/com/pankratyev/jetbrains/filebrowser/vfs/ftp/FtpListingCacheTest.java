@@ -0,0 +1,115 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.FileObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public final class FtpListingCacheTest {
+    private static final long LONG_TIME = 60 * 60 * 1000;
+
+    private FtpClient client;
+    private FtpFileObject directory;
+    private StubLister lister;
+
+    @Before
+    public void setUp() {
+        client = new FtpClient("", 0, null, null);
+        directory = new FtpFileObject(client, "/dir", null, true, client.getLocalCopyManager());
+        lister = new StubLister();
+        lister.children.add(createChild("/dir/file1"));
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    @Test
+    public void testFreshListingCached() throws IOException {
+        FtpListingCache cache = new FtpListingCache(lister, LONG_TIME, LONG_TIME);
+        assertEquals(lister.children, cache.get(directory));
+        assertEquals(lister.children, cache.get(directory));
+        assertEquals(1, lister.listCount);
+
+        cache.invalidate("/");
+        cache.get(directory);
+        assertEquals(2, lister.listCount);
+    }
+
+    @Test
+    public void testRevalidation() throws IOException {
+        FtpListingCache cache = new FtpListingCache(lister, LONG_TIME, LONG_TIME);
+        FileObject file1 = cache.get(directory).get(0);
+
+        // unchanged listing: the same children instances are kept
+        lister.children = Collections.<FileObject>singletonList(createChild("/dir/file1"));
+        cache.revalidate(directory);
+        assertSame(file1, cache.get(directory).get(0));
+
+        lister.children = Collections.<FileObject>singletonList(createChild("/dir/file2"));
+        cache.revalidate(directory);
+        assertEquals(lister.children, cache.get(directory));
+    }
+
+    @Test
+    public void testStaleListingNotRevalidatedAfterClose() throws IOException {
+        FtpListingCache cache = new FtpListingCache(lister, 0, LONG_TIME);
+        cache.get(directory);
+        cache.close();
+        assertEquals(lister.children, cache.get(directory));
+        assertEquals(1, lister.listCount);
+    }
+
+    @Test
+    public void testCachedListingPassedToConsumer() throws IOException {
+        FtpListingCache cache = new FtpListingCache(lister, LONG_TIME, LONG_TIME);
+        cache.get(directory);
+
+        final List<FileObject> received = new ArrayList<>();
+        cache.get(directory, new ListingPageConsumer() {
+            @Override
+            public void accept(@Nonnull List<FileObject> page) {
+                received.addAll(page);
+            }
+        });
+        assertEquals(lister.children, received);
+        assertEquals(1, lister.listCount);
+    }
+
+    @Test
+    public void testStaleListingNotUsed() throws IOException {
+        FtpListingCache cache = new FtpListingCache(lister, 0, 0);
+        cache.get(directory);
+        cache.get(directory);
+        assertEquals(2, lister.listCount);
+    }
+
+    private FtpFileObject createChild(String path) {
+        return new FtpFileObject(client, path, directory, false, client.getLocalCopyManager());
+    }
+
+
+    private static final class StubLister implements FtpListingCache.Lister {
+        private List<FileObject> children = new ArrayList<>();
+        private int listCount = 0;
+
+        @Nonnull
+        @Override
+        public List<FileObject> list(@Nonnull FtpFileObject directory, @Nonnull TransferPriority priority,
+                @Nullable ListingPageConsumer consumer) {
+            listCount++;
+            return children;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import com.pankratyev.jetbrains.filebrowser.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public final class FtpSegmentedDownloaderTest {
+    private ExecutorService executor;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newCachedThreadPool();
+        file = Files.createTempFile("FtpSegmentedDownloaderTest", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        TestUtils.deleteFiles(file);
+    }
+
+    @Test
+    public void testSegmentsAssembled() throws IOException {
+        byte[] data = createData(10 * 1024 + 1);
+        StubTransport transport = new StubTransport(data);
+        new FtpSegmentedDownloader(executor).download(transport, 3, data.length, file, "test");
+        assertArrayEquals(data, Files.readAllBytes(file));
+        assertEquals(3, transport.openedCount.get());
+        assertEquals(3, transport.closedCount.get());
+    }
+
+    @Test
+    public void testFailureAbortsAndWaitsForOtherSegments() throws IOException {
+        byte[] data = createData(10 * 1024);
+        StubTransport transport = new StubTransport(data);
+        transport.failingSegment = 2;
+        transport.blockingSegment = 0;
+        try {
+            new FtpSegmentedDownloader(executor).download(transport, 3, data.length, file, "test");
+            fail("Download must fail");
+        } catch (IOException e) {
+            assertEquals("Segment failed", e.getMessage());
+        }
+        assertEquals(0, transport.aborted.getCount());
+        // every opened segment stream is closed when download fails, so no connection is held afterwards
+        assertEquals(transport.openedCount.get(), transport.closedCount.get());
+        // nothing is downloaded from the beginning of the file
+        assertEquals(0, Files.size(file));
+    }
+
+    private static byte[] createData(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 % 251);
+        }
+        return data;
+    }
+
+
+    private static final class StubTransport implements FtpSegmentedDownloader.Transport {
+        private final byte[] data;
+        private volatile int failingSegment = -1;
+        private volatile int blockingSegment = -1;
+        private final CountDownLatch aborted = new CountDownLatch(1);
+        private final AtomicInteger openedCount = new AtomicInteger();
+        private final AtomicInteger closedCount = new AtomicInteger();
+
+        private StubTransport(byte[] data) {
+            this.data = data;
+        }
+
+        @Nonnull
+        @Override
+        public InputStream open(final int segment, long offset) throws IOException {
+            if (segment == failingSegment) {
+                throw new IOException("Segment failed");
+            }
+            openedCount.incrementAndGet();
+            return new FilterInputStream(new ByteArrayInputStream(Arrays.copyOfRange(data, (int) offset,
+                    data.length))) {
+                @Override
+                public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+                    if (segment == blockingSegment) {
+                        // blocked in reading until the transfer is aborted, like a socket read
+                        try {
+                            aborted.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        throw new IOException("Transfer aborted");
+                    }
+                    return super.read(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    closedCount.incrementAndGet();
+                    super.close();
+                }
+            };
+        }
+
+        @Override
+        public void abort() {
+            aborted.countDown();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.FileObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public final class FtpTreeWalkerTest {
+    private FtpClient client;
+    private StubLister lister;
+    private FtpFileObject root;
+    private FtpFileObject dir1;
+    private FtpFileObject dir2;
+    private FtpFileObject dir11;
+
+    @Before
+    public void setUp() {
+        client = new FtpClient("", 0, null, null);
+        lister = new StubLister();
+
+        root = createDirectory("/root", null);
+        dir1 = createDirectory("/root/dir1", root);
+        dir2 = createDirectory("/root/dir2", root);
+        dir11 = createDirectory("/root/dir1/dir11", dir1);
+        lister.put(root, dir1, dir2, createFile("/root/file", root));
+        lister.put(dir1, dir11);
+        lister.put(dir2, createFile("/root/dir2/file1", dir2), createFile("/root/dir2/file2", dir2));
+        lister.put(dir11);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    @Test
+    public void testDirectoriesListedInParallel() throws IOException {
+        Set<String> received = walk(new FtpTreeWalker(lister, 2, 1));
+        assertEquals(new HashSet<>(Arrays.asList("/root/dir1", "/root/dir2", "/root/file", "/root/dir1/dir11",
+                "/root/dir2/file1", "/root/dir2/file2")), received);
+        assertEquals(new HashSet<>(Arrays.asList("/root", "/root/dir1", "/root/dir2", "/root/dir1/dir11")),
+                new HashSet<>(lister.listedPaths));
+        assertEquals(4, lister.listedPaths.size());
+    }
+
+    @Test
+    public void testRecursiveListingUsed() throws IOException {
+        // recursive listing lacks dir2 and dir11 (e.g. they are not readable by server process)
+        lister.recursiveListing.put(dir1, lister.listings.get(dir1.getFullName()));
+
+        Set<String> received = walk(new FtpTreeWalker(lister, 2, 10));
+        assertEquals(6, received.size());
+        assertEquals(new HashSet<>(Arrays.asList("/root", "/root/dir2", "/root/dir1/dir11")),
+                new HashSet<>(lister.listedPaths));
+        assertEquals(3, lister.listedPaths.size());
+    }
+
+    private Set<String> walk(FtpTreeWalker walker) throws IOException {
+        final Set<String> received = new HashSet<>();
+        walker.walk(root, new ListingPageConsumer() {
+            @Override
+            public void accept(@Nonnull List<FileObject> page) {
+                for (FileObject fileObject : page) {
+                    received.add(fileObject.getFullName());
+                }
+            }
+        });
+        return received;
+    }
+
+    private FtpFileObject createDirectory(String path, FtpFileObject parent) {
+        return new FtpFileObject(client, path, parent, true, client.getLocalCopyManager());
+    }
+
+    private FtpFileObject createFile(String path, FtpFileObject parent) {
+        return new FtpFileObject(client, path, parent, false, client.getLocalCopyManager());
+    }
+
+
+    private static final class StubLister implements FtpTreeWalker.Lister {
+        private final Map<String, List<FileObject>> listings = new HashMap<>();
+        private final Map<FtpFileObject, List<FileObject>> recursiveListing = new HashMap<>();
+        private final List<String> listedPaths = Collections.synchronizedList(new ArrayList<String>());
+
+        private void put(FtpFileObject directory, FileObject... children) {
+            listings.put(directory.getFullName(), Arrays.asList(children));
+        }
+
+        @Nonnull
+        @Override
+        public List<FileObject> list(@Nonnull FtpFileObject directory) {
+            listedPaths.add(directory.getFullName());
+            return listings.get(directory.getFullName());
+        }
+
+        @Override
+        public boolean listRecursively(@Nonnull FtpFileObject directory,
+                @Nonnull FtpTreeWalker.DirectoryConsumer consumer) {
+            for (Map.Entry<FtpFileObject, List<FileObject>> entry : recursiveListing.entrySet()) {
+                consumer.accept(entry.getKey(), entry.getValue());
+            }
+            return !recursiveListing.isEmpty();
+        }
+    }
+}
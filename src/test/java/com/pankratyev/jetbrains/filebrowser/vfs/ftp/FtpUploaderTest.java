@@ -0,0 +1,168 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import com.pankratyev.jetbrains.filebrowser.TestUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class FtpUploaderTest {
+    @Test
+    public void testDirectoryUploaded() throws IOException {
+        Path dir = Files.createTempDirectory("FtpUploaderTest.testDirectoryUploaded");
+        try {
+            Path subDir = Files.createDirectory(dir.resolve("sub"));
+            Files.createDirectory(dir.resolve("empty"));
+            for (int i = 0; i < 20; i++) {
+                Files.write((i % 2 == 0 ? dir : subDir).resolve("file" + i), createData(100 + i));
+            }
+
+            StubTransport transport = new StubTransport(false);
+            StubListener listener = new StubListener();
+            new FtpUploader(transport, 4, 3, 1).upload(dir, "/remote", listener);
+
+            String base = "/remote/" + dir.getFileName();
+            assertEquals(new HashSet<>(Arrays.asList(base, base + "/sub", base + "/empty")), transport.directories);
+            assertEquals(20, transport.files.size());
+            for (int i = 0; i < 20; i++) {
+                String path = base + (i % 2 == 0 ? "" : "/sub") + "/file" + i;
+                assertArrayEquals(createData(100 + i), transport.files.get(path));
+            }
+            assertEquals(listener.total.get(), listener.sent.get());
+        } finally {
+            TestUtils.deleteFiles(dir);
+        }
+    }
+
+    @Test
+    public void testLargeFileUploadedInSegments() throws IOException {
+        Path file = Files.createTempFile("FtpUploaderTest.testLargeFileUploadedInSegments", ".bin");
+        try {
+            byte[] data = createData(10 * 1024 + 1);
+            Files.write(file, data);
+
+            StubTransport transport = new StubTransport(true);
+            StubListener listener = new StubListener();
+            new FtpUploader(transport, 3, 3, 1024).upload(file, "/", listener);
+
+            assertArrayEquals(data, transport.files.get("/" + file.getFileName()));
+            assertEquals(3, transport.offsets.size());
+            assertEquals(data.length, listener.sent.get());
+        } finally {
+            TestUtils.deleteFiles(file);
+        }
+    }
+
+    @Test
+    public void testFailedSegmentedUploadRepeatedInSingleStream() throws IOException {
+        Path file = Files.createTempFile("FtpUploaderTest.testFailedSegmentedUploadRepeatedInSingleStream", ".bin");
+        try {
+            byte[] data = createData(10 * 1024);
+            Files.write(file, data);
+
+            StubTransport transport = new StubTransport(true);
+            transport.failRestart = true;
+            StubListener listener = new StubListener();
+            new FtpUploader(transport, 3, 3, 1024).upload(file, "/", listener);
+
+            assertArrayEquals(data, transport.files.get("/" + file.getFileName()));
+            assertTrue(transport.offsets.contains(0L));
+            assertEquals(data.length, listener.sent.get()); // bytes of failed attempts are not counted
+        } finally {
+            TestUtils.deleteFiles(file);
+        }
+    }
+
+    private static byte[] createData(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 % 251);
+        }
+        return data;
+    }
+
+
+    private static final class StubTransport implements FtpUploader.Transport {
+        private final boolean restartSupported;
+        private volatile boolean failRestart = false;
+        private final Set<String> directories = Collections.synchronizedSet(new HashSet<String>());
+        private final Map<String, byte[]> files = Collections.synchronizedMap(new HashMap<String, byte[]>());
+        private final List<Long> offsets = Collections.synchronizedList(new ArrayList<Long>());
+
+        private StubTransport(boolean restartSupported) {
+            this.restartSupported = restartSupported;
+        }
+
+        @Override
+        public void makeDirectory(@Nonnull String path) {
+            directories.add(path);
+        }
+
+        @Override
+        public void store(@Nonnull String path, long offset, @Nonnull InputStream data, @Nonnull Runnable opened)
+                throws IOException {
+            if (offset > 0 && failRestart) {
+                throw new IOException("REST is rejected");
+            }
+            offsets.add(offset);
+            synchronized (files) {
+                if (offset == 0) {
+                    files.put(path, new byte[0]);
+                }
+            }
+            opened.run();
+            byte[] bytes = IOUtils.toByteArray(data);
+            synchronized (files) {
+                byte[] file = files.get(path);
+                if (file.length < offset + bytes.length) {
+                    file = Arrays.copyOf(file, (int) offset + bytes.length);
+                }
+                System.arraycopy(bytes, 0, file, (int) offset, bytes.length);
+                files.put(path, file);
+            }
+        }
+
+        @Override
+        public boolean isRestartSupported() {
+            return restartSupported;
+        }
+
+        @Override
+        public long getSize(@Nonnull String path) {
+            byte[] file = files.get(path);
+            return file != null ? file.length : -1;
+        }
+    }
+
+    private static final class StubListener implements UploadListener {
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+
+        @Override
+        public void fileProgress(@Nonnull Path file, long sent, long size, long throughput) {
+        }
+
+        @Override
+        public void overallProgress(long sent, long total, long throughput) {
+            this.total.set(total);
+            this.sent.set(sent);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public final class InflatingInputStreamTest {
+    @Test
+    public void testInflated() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("-rw-r--r-- 1 ftp ftp 1024 Jan 01 00:00 file").append(i).append(".log\r\n");
+        }
+        byte[] data = sb.toString().getBytes(StandardCharsets.US_ASCII);
+
+        try (InputStream is = new InflatingInputStream(new ByteArrayInputStream(deflate(data)), "test")) {
+            assertArrayEquals(data, IOUtils.toByteArray(is));
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncatedDataNotAccepted() throws IOException {
+        byte[] data = new byte[64 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 % 251);
+        }
+        byte[] compressed = deflate(data);
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+
+        try (InputStream is = new InflatingInputStream(new ByteArrayInputStream(truncated), "test")) {
+            IOUtils.toByteArray(is);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DeflaterOutputStream os = new DeflaterOutputStream(bos)) {
+            os.write(data);
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,66 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class LatencyTrackerTest {
+    @Test
+    public void testPercentile() {
+        LatencyTracker tracker = new LatencyTracker(100);
+        assertEquals(0, tracker.getPercentile(95));
+        for (int i = 100; i >= 1; i--) {
+            tracker.record(i);
+        }
+        assertEquals(100, tracker.getSampleCount());
+        assertEquals(50, tracker.getPercentile(50));
+        assertEquals(95, tracker.getPercentile(95));
+        assertEquals(100, tracker.getPercentile(100));
+    }
+
+    @Test
+    public void testOldestSamplesDropped() {
+        LatencyTracker tracker = new LatencyTracker(3);
+        tracker.record(5000);
+        tracker.record(10);
+        tracker.record(20);
+        tracker.record(30);
+        assertEquals(3, tracker.getSampleCount());
+        assertEquals(30, tracker.getPercentile(100));
+    }
+
+    @Test
+    public void testStalledOperationRecordedWhenCancelled() throws InterruptedException {
+        final LatencyTracker tracker = new LatencyTracker(10);
+        for (int i = 0; i < 9; i++) {
+            tracker.start().stop();
+        }
+
+        final CountDownLatch reply = new CountDownLatch(1); // never counted down: FTP server doesn't reply
+        Thread operation = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                LatencyTracker.Sample sample = tracker.start();
+                try {
+                    reply.await();
+                } catch (InterruptedException e) {
+                    // cancelled
+                } finally {
+                    sample.stop();
+                    sample.stop(); // recorded once
+                }
+            }
+        });
+        operation.start();
+        Thread.sleep(200);
+        operation.interrupt();
+        operation.join();
+
+        assertEquals(10, tracker.getSampleCount());
+        assertTrue(tracker.getPercentile(100) >= 200);
+        assertTrue(tracker.getPercentile(90) < 200);
+    }
+}
@@ -1,54 +1,40 @@
 package com.pankratyev.jetbrains.filebrowser.vfs.ftp;
 
 import com.pankratyev.jetbrains.filebrowser.TestUtils;
+import com.pankratyev.jetbrains.filebrowser.vfs.PersistentCache;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static java.io.File.separator;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.powermock.api.mockito.PowerMockito.doReturn;
 import static org.powermock.api.mockito.PowerMockito.spy;
 
 @RunWith(PowerMockRunner.class)
 @PrepareForTest(LocalCopyManager.class)
 public class LocalCopyManagerTest {
-    @Test
-    public void testGetLocalCopyOutputStream() throws IOException {
-        LocalCopyManager subj = new LocalCopyManager("testhost1");
-        String testPath = separator + "absolute" + separator + "path" + separator + "testGetLocalCopyOutputStream";
-        FtpFileObject testFileObject = new FtpFileObject(new FtpClient("", 0, null, null), testPath, null, false, subj);
-
-        try (OutputStream os = subj.getLocalCopyOutputStream(testFileObject)) {
-            assertNotNull(os);
-            try (OutputStreamWriter osw = new OutputStreamWriter(os, StandardCharsets.UTF_8)) {
-                osw.write("testGetLocalCopyOutputStream");
-            }
-        }
-
-        Path localCopyPath = Paths.get(LocalCopyManager.BASE_DIRECTORY + File.separator + "testhost1" + testPath);
-        try {
-            assertTrue(localCopyPath.toString(), Files.exists(localCopyPath));
-            String content = new String(Files.readAllBytes(localCopyPath), StandardCharsets.UTF_8);
-            assertNotNull("testGetLocalCopyOutputStream", content);
-        } finally {
-            TestUtils.deleteFiles(localCopyPath);
-        }
-    }
-
     @Test
     public void testGetLocalCopy() throws IOException {
         LocalCopyManager subj = new LocalCopyManager("testhost2");
@@ -85,10 +71,11 @@ public class LocalCopyManagerTest {
                     new FtpClient("", 0, null, null), testPath, null, false, subj);
             assertNotNull(subj.getLocalCopy(testFileObject));
 
-            // set very short expire interval
+            // set very short revalidation interval; the local copy can't be revalidated since it is stored without
+            // remote file attributes
             LocalCopyManager spy = spy(subj);
-            int expireInterval = 1;
-            doReturn(expireInterval).when(spy, "getLocalCopyExpireTimeInterval");
+            long expireInterval = 1;
+            doReturn(expireInterval).when(spy, "getRevalidationInterval");
 
             Thread.sleep(expireInterval);
             // should be null (expired) on second request (on spy this time)
@@ -97,4 +84,194 @@ public class LocalCopyManagerTest {
             TestUtils.deleteFiles(localCopyPath);
         }
     }
+
+    @Test
+    public void testPartialCopyResumed() throws IOException {
+        LocalCopyManager subj = new LocalCopyManager("testhost4");
+        String testPath = separator + "absolute" + separator + "path" + separator + "testPartialCopyResumed";
+        Path localCopyPath = Paths.get(LocalCopyManager.BASE_DIRECTORY + File.separator + "testhost4" + testPath);
+        FtpFileObject testFileObject = new FtpFileObject(new FtpClient("", 0, null, null), testPath, null, false, subj);
+        FtpFileAttributes attributes = new FtpFileAttributes(6, 1000);
+
+        try {
+            try (OutputStream os = subj.getPartialCopyOutputStream(testFileObject, attributes, 0)) {
+                os.write("abc".getBytes(StandardCharsets.UTF_8));
+            }
+            assertNull(subj.getLocalCopy(testFileObject));
+            assertEquals(3, subj.getResumableLength(testFileObject, attributes));
+
+            try (OutputStream os = subj.getPartialCopyOutputStream(testFileObject, attributes, 3)) {
+                os.write("def".getBytes(StandardCharsets.UTF_8));
+            }
+            Path localCopy = subj.commitPartialCopy(testFileObject, attributes);
+            assertEquals("abcdef", new String(Files.readAllBytes(localCopy), StandardCharsets.UTF_8));
+        } finally {
+            TestUtils.deleteFiles(localCopyPath);
+        }
+    }
+
+    @Test
+    public void testAbortedSegmentedDownloadResumed() throws IOException {
+        LocalCopyManager subj = new LocalCopyManager("testhost8");
+        String testPath = separator + "absolute" + separator + "path" + separator + "testAbortedSegmentedDownload";
+        Path localCopyPath = Paths.get(LocalCopyManager.BASE_DIRECTORY + File.separator + "testhost8" + testPath);
+        FtpFileObject testFileObject = new FtpFileObject(new FtpClient("", 0, null, null), testPath, null, false, subj);
+        byte[] data = "abcdefghijklmnopqrstuvwxyz0123".getBytes(StandardCharsets.UTF_8);
+        FtpFileAttributes attributes = new FtpFileAttributes(data.length, 1000);
+        ExecutorService executor = Executors.newCachedThreadPool();
+
+        try {
+            try {
+                new FtpSegmentedDownloader(executor).download(new AbortedTransport(data), 3, data.length,
+                        subj.getPartialCopyPath(testFileObject), "test");
+                fail("Download must be aborted");
+            } catch (IOException e) {
+                subj.keepPartialCopy(testFileObject, attributes);
+            }
+            // the first segment and the beginning of the second one are downloaded completely
+            long resumableLength = 10 + AbortedTransport.ABORTED_AT;
+            assertEquals(resumableLength, subj.getResumableLength(testFileObject, attributes));
+
+            try (OutputStream os = subj.getPartialCopyOutputStream(testFileObject, attributes, resumableLength)) {
+                os.write(data, (int) resumableLength, data.length - (int) resumableLength);
+            }
+            Path localCopy = subj.commitPartialCopy(testFileObject, attributes);
+            assertArrayEquals(data, Files.readAllBytes(localCopy));
+        } finally {
+            executor.shutdownNow();
+            TestUtils.deleteFiles(localCopyPath);
+        }
+    }
+
+    @Test
+    public void testPartialCopyOfChangedFileDeleted() throws IOException {
+        LocalCopyManager subj = new LocalCopyManager("testhost5");
+        String testPath = separator + "absolute" + separator + "path" + separator + "testPartialCopyOfChangedFile";
+        FtpFileObject testFileObject = new FtpFileObject(new FtpClient("", 0, null, null), testPath, null, false, subj);
+
+        try (OutputStream os = subj.getPartialCopyOutputStream(testFileObject, new FtpFileAttributes(6, 1000), 0)) {
+            os.write("abc".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(0, subj.getResumableLength(testFileObject, new FtpFileAttributes(6, 2000)));
+        assertEquals(0, subj.getResumableLength(testFileObject, new FtpFileAttributes(6, 1000)));
+    }
+
+    @Test
+    public void testStoredLocalCopySharesContents() throws IOException {
+        LocalCopyManager subj = new LocalCopyManager("testhost7");
+        String testPath = separator + "absolute" + separator + "path" + separator + "testStoredLocalCopy";
+        Path localCopyPath = Paths.get(LocalCopyManager.BASE_DIRECTORY + File.separator + "testhost7" + testPath);
+        FtpFileObject testFileObject = new FtpFileObject(new FtpClient("", 0, null, null), testPath, null, false, subj);
+        Path cacheDir = Files.createTempDirectory("LocalCopyManagerTest.testStoredLocalCopySharesContents");
+
+        try {
+            Path cached = new PersistentCache(cacheDir).getOrLoad("key", new PersistentCache.Loader() {
+                @Override
+                public void load(@Nonnull OutputStream os) throws IOException {
+                    os.write("cached".getBytes(StandardCharsets.UTF_8));
+                }
+            });
+            FtpFileAttributes attributes = new FtpFileAttributes(6, 1000);
+            assertEquals(localCopyPath, subj.storeLocalCopy(testFileObject, cached, attributes));
+            assertEquals("cached", new String(Files.readAllBytes(localCopyPath), StandardCharsets.UTF_8));
+            // stored again (e.g. restored after eviction) over the existing copy
+            assertEquals(localCopyPath, subj.storeLocalCopy(testFileObject, cached, attributes));
+            assertEquals("cached", new String(Files.readAllBytes(localCopyPath), StandardCharsets.UTF_8));
+
+            // a new version of the file replaces the local copy; the cache entry is not changed
+            FtpFileAttributes changedAttributes = new FtpFileAttributes(7, 2000);
+            try (OutputStream os = subj.getPartialCopyOutputStream(testFileObject, changedAttributes, 0)) {
+                os.write("changed".getBytes(StandardCharsets.UTF_8));
+            }
+            subj.commitPartialCopy(testFileObject, changedAttributes);
+            assertEquals("changed", new String(Files.readAllBytes(localCopyPath), StandardCharsets.UTF_8));
+            assertEquals("cached", new String(Files.readAllBytes(cached), StandardCharsets.UTF_8));
+        } finally {
+            TestUtils.deleteFiles(localCopyPath, cacheDir);
+        }
+    }
+
+    @Test
+    public void testRevalidation() throws Exception {
+        LocalCopyManager subj = spy(new LocalCopyManager("testhost6"));
+        long revalidationInterval = 1;
+        doReturn(revalidationInterval).when(subj, "getRevalidationInterval");
+        String testPath = separator + "absolute" + separator + "path" + separator + "testRevalidation";
+        Path localCopyPath = Paths.get(LocalCopyManager.BASE_DIRECTORY + File.separator + "testhost6" + testPath);
+        FtpClient client = new FtpClient("", 0, null, null);
+        FtpFileAttributes attributes = new FtpFileAttributes(3, 1000);
+
+        try {
+            FtpFileObject testFileObject = new FtpFileObject(client, testPath, null, false, subj, attributes, null);
+            try (OutputStream os = subj.getPartialCopyOutputStream(testFileObject, attributes, 0)) {
+                os.write("abc".getBytes(StandardCharsets.UTF_8));
+            }
+            subj.commitPartialCopy(testFileObject, attributes);
+
+            Thread.sleep(revalidationInterval + 1);
+            // remote file is unchanged (according to listing)
+            assertNotNull(subj.getLocalCopy(testFileObject));
+
+            Thread.sleep(revalidationInterval + 1);
+            FtpFileObject changedFileObject = new FtpFileObject(client, testPath, null, false, subj,
+                    new FtpFileAttributes(3, 2000), null);
+            assertNull(subj.getLocalCopy(changedFileObject));
+        } finally {
+            TestUtils.deleteFiles(localCopyPath);
+            client.close();
+        }
+    }
+
+
+    /**
+     * Transfers segments of a file of 3 segments; the second segment is aborted when a part of it is transferred
+     * and the first one is complete.
+     */
+    private static final class AbortedTransport implements FtpSegmentedDownloader.Transport {
+        private static final int ABORTED_AT = 4;
+
+        private final byte[] data;
+        private final CountDownLatch firstSegmentDownloaded = new CountDownLatch(1);
+
+        private AbortedTransport(byte[] data) {
+            this.data = data;
+        }
+
+        @Nonnull
+        @Override
+        public InputStream open(int segment, long offset) {
+            InputStream is = new ByteArrayInputStream(data, (int) offset, data.length - (int) offset);
+            if (segment == 0) {
+                return new FilterInputStream(is) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        firstSegmentDownloaded.countDown();
+                    }
+                };
+            }
+            if (segment == 1) {
+                return new FilterInputStream(new BoundedInputStream(is, ABORTED_AT)) {
+                    @Override
+                    public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+                        int read = super.read(b, off, len);
+                        if (read < 0) {
+                            try {
+                                firstSegmentDownloaded.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            throw new IOException("Transfer aborted");
+                        }
+                        return read;
+                    }
+                };
+            }
+            return is;
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
 }
@@ -2,6 +2,7 @@ package com.pankratyev.jetbrains.filebrowser.vfs.local;
 
 import com.pankratyev.jetbrains.filebrowser.TestUtils;
 import com.pankratyev.jetbrains.filebrowser.vfs.FileObject;
+import com.pankratyev.jetbrains.filebrowser.vfs.zip.ZipFileHandle;
 import com.pankratyev.jetbrains.filebrowser.vfs.zip.ZipUtils;
 import org.apache.commons.io.IOUtils;
 import org.junit.Test;
@@ -48,6 +49,10 @@ public final class LocalFileObjectTest {
                 assertNotNull(is);
                 assertEquals("test", IOUtils.toString(is, StandardCharsets.UTF_8));
             }
+            try (InputStream is = subj.getHeadInputStream(2)) {
+                assertNotNull(is);
+                assertEquals("te", IOUtils.toString(is, StandardCharsets.UTF_8));
+            }
         } finally {
             TestUtils.deleteFiles(file);
         }
@@ -69,6 +74,7 @@ public final class LocalFileObjectTest {
             assertEquals(dir.getFileName().toString(), subj.getName());
 
             assertNull(subj.getInputStream());
+            assertNull(subj.getHeadInputStream(1));
         } finally {
             TestUtils.deleteFiles(dir);
         }
@@ -179,7 +185,8 @@ public final class LocalFileObjectTest {
             assertEquals(archivePath.getFileName().toString(), archive.getName());
             assertEquals(archivePath.toAbsolutePath().toString(), archive.getFullName());
 
-            try (ZipFile zf = new ZipUtils.LocalArchiveZipFileProvider(archive).getZipFile()) {
+            try (ZipFileHandle zfHandle = new ZipUtils.LocalArchiveZipFileProvider(archive).getZipFile()) {
+                ZipFile zf = zfHandle.getZipFile();
                 Enumeration<? extends ZipEntry> entriesEnumeration = zf.entries();
                 List<ZipEntry> entries = new ArrayList<>(8);
                 while (entriesEnumeration.hasMoreElements()) {
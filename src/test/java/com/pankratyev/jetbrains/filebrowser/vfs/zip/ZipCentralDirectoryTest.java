@@ -0,0 +1,140 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.zip;
+
+import com.pankratyev.jetbrains.filebrowser.vfs.SeekableSource;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class ZipCentralDirectoryTest {
+    private static final String STORED_CONTENT = "stored content";
+    private static final String DEFLATED_CONTENT = "deflated content deflated content deflated content";
+
+    @Test
+    public void testReadEntries() throws IOException {
+        CountingSource source = new CountingSource(createArchive("archive comment"));
+
+        ZipCentralDirectory cd = ZipCentralDirectory.read(source);
+        List<String> names = new ArrayList<>();
+        for (ZipCentralDirectory.Entry entry : cd.getEntries()) {
+            names.add(entry.getName());
+        }
+        assertEquals(Arrays.asList("dir/", "dir/stored.txt", "dir/deflated.txt"), names);
+        assertTrue(cd.getEntry("dir/").isDirectory());
+        assertNull(cd.getEntry("absent.txt"));
+        // small archive: central directory is in the same range as end of central directory record
+        assertEquals(1, source.openedStreams);
+
+        ZipCentralDirectory.Entry stored = cd.getEntry("dir/stored.txt");
+        assertNotNull(stored);
+        assertEquals(STORED_CONTENT.length(), stored.getSize());
+        try (InputStream is = ZipCentralDirectory.openEntryStream(source, stored)) {
+            assertEquals(STORED_CONTENT, IOUtils.toString(is, StandardCharsets.UTF_8));
+        }
+
+        ZipCentralDirectory.Entry deflated = cd.getEntry("dir/deflated.txt");
+        assertNotNull(deflated);
+        try (InputStream is = ZipCentralDirectory.openEntryStream(source, deflated)) {
+            assertEquals(DEFLATED_CONTENT, IOUtils.toString(is, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testReadStoredNestedArchiveByOffset() throws IOException {
+        byte[] nestedBytes = createArchive("");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+            ZipEntry nested = new ZipEntry("lib/nested.jar");
+            nested.setMethod(ZipEntry.STORED);
+            nested.setSize(nestedBytes.length);
+            CRC32 crc = new CRC32();
+            crc.update(nestedBytes);
+            nested.setCrc(crc.getValue());
+            zos.putNextEntry(nested);
+            zos.write(nestedBytes);
+            zos.closeEntry();
+        }
+        SeekableSource parentSource = new ByteArraySeekableSource(baos.toByteArray());
+
+        ZipCentralDirectory.Entry nested = ZipCentralDirectory.read(parentSource).getEntry("lib/nested.jar");
+        assertNotNull(nested);
+        assertEquals(ZipCentralDirectory.METHOD_STORED, nested.getMethod());
+        SeekableSource nestedSource = new RangeSeekableSource(parentSource,
+                ZipCentralDirectory.getDataOffset(parentSource, nested), nested.getSize());
+
+        ZipCentralDirectory nestedCd = ZipCentralDirectory.read(nestedSource);
+        ZipCentralDirectory.Entry deflated = nestedCd.getEntry("dir/deflated.txt");
+        assertNotNull(deflated);
+        try (InputStream is = ZipCentralDirectory.openEntryStream(nestedSource, deflated)) {
+            assertEquals(DEFLATED_CONTENT, IOUtils.toString(is, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test(expected = ZipException.class)
+    public void testNotArchive() throws IOException {
+        ZipCentralDirectory.read(new CountingSource("not an archive".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static byte[] createArchive(String comment) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+            zos.setComment(comment);
+            zos.putNextEntry(new ZipEntry("dir/"));
+            zos.closeEntry();
+
+            byte[] storedBytes = STORED_CONTENT.getBytes(StandardCharsets.UTF_8);
+            ZipEntry stored = new ZipEntry("dir/stored.txt");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(storedBytes.length);
+            CRC32 crc = new CRC32();
+            crc.update(storedBytes);
+            stored.setCrc(crc.getValue());
+            zos.putNextEntry(stored);
+            zos.write(storedBytes);
+            zos.closeEntry();
+
+            zos.putNextEntry(new ZipEntry("dir/deflated.txt"));
+            zos.write(DEFLATED_CONTENT.getBytes(StandardCharsets.UTF_8));
+            zos.closeEntry();
+        }
+        return baos.toByteArray();
+    }
+
+    private static final class CountingSource implements SeekableSource {
+        private final byte[] bytes;
+        private int openedStreams = 0;
+
+        private CountingSource(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long size() {
+            return bytes.length;
+        }
+
+        @Nonnull
+        @Override
+        public InputStream openStream(long position) {
+            openedStreams++;
+            return new ByteArrayInputStream(bytes, (int) position, bytes.length - (int) position);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.zip;
+
+import com.pankratyev.jetbrains.filebrowser.TestUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public final class ZipFilePoolTest {
+    @Test
+    public void testSharedAndEvicted() throws IOException {
+        Path topDir = null;
+        try {
+            topDir = Files.createTempDirectory("ZipFilePoolTest.testSharedAndEvicted");
+            Path file = Files.createTempFile(topDir, "file", ".txt");
+            Files.write(file, "test".getBytes(StandardCharsets.UTF_8));
+            Path archive1 = Files.createTempFile(topDir, "archive1", ".zip");
+            Path archive2 = Files.createTempFile(topDir, "archive2", ".zip");
+            TestUtils.zipSingleFile(file, archive1);
+            TestUtils.zipSingleFile(file, archive2);
+
+            ZipFilePool pool = new ZipFilePool(1);
+
+            ZipFileHandle handle1 = pool.acquire(archive1);
+            ZipFileHandle handle2 = pool.acquire(archive1);
+            assertSame(handle1.getZipFile(), handle2.getZipFile());
+            assertEquals(1, pool.getOpenFilesCount());
+
+            // archive1 is evicted but still in use
+            ZipFileHandle handle3 = pool.acquire(archive2);
+            assertEquals(1, pool.getOpenFilesCount());
+            assertEquals(1, handle1.getZipFile().size());
+
+            handle1.close();
+            handle1.close(); // no effect
+            assertEquals(1, handle2.getZipFile().size());
+            handle2.close();
+
+            try {
+                handle2.getZipFile();
+                fail("Closed handle should not provide a zip file");
+            } catch (IllegalStateException expected) {
+            }
+
+            ZipFileHandle handle4 = pool.acquire(archive2);
+            assertSame(handle3.getZipFile(), handle4.getZipFile());
+            handle3.close();
+            handle4.close();
+        } finally {
+            TestUtils.deleteFiles(topDir);
+        }
+    }
+
+    @Test
+    public void testChangedArchiveReopened() throws IOException {
+        Path topDir = null;
+        try {
+            topDir = Files.createTempDirectory("ZipFilePoolTest.testChangedArchiveReopened");
+            Path file = Files.createTempFile(topDir, "file", ".txt");
+            Path archive = Files.createTempFile(topDir, "archive", ".zip");
+            TestUtils.zipSingleFile(file, archive);
+            Files.setLastModifiedTime(archive, FileTime.fromMillis(1000));
+
+            ZipFilePool pool = new ZipFilePool(4);
+            ZipFileHandle handle1 = pool.acquire(archive);
+            handle1.close();
+
+            Files.setLastModifiedTime(archive, FileTime.fromMillis(2000));
+            ZipFileHandle handle2 = pool.acquire(archive);
+            assertEquals(1, pool.getOpenFilesCount());
+            ZipFileHandle handle3 = pool.acquire(archive);
+            assertSame(handle2.getZipFile(), handle3.getZipFile());
+            assertNotSame(handle1, handle2);
+            handle2.close();
+            handle3.close();
+        } finally {
+            TestUtils.deleteFiles(topDir);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.pankratyev.jetbrains.filebrowser.vfs.zip;
+
+import com.pankratyev.jetbrains.filebrowser.TestUtils;
+import com.pankratyev.jetbrains.filebrowser.vfs.FileObject;
+import com.pankratyev.jetbrains.filebrowser.vfs.local.LocalFileObject;
+import com.pankratyev.jetbrains.filebrowser.vfs.local.LocalFileObjectFactory;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class ZipIndexTest {
+    @Test
+    public void testImplicitDirectories() throws IOException {
+        Path archivePath = null;
+        try {
+            archivePath = Files.createTempFile("ZipIndexTest.testImplicitDirectories", ".zip");
+            // no separate entries for 'a/' and 'a/b/'
+            try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archivePath.toFile()))) {
+                zos.putNextEntry(new ZipEntry("a/b/c.txt"));
+                zos.write("c".getBytes(StandardCharsets.UTF_8));
+                zos.closeEntry();
+                zos.putNextEntry(new ZipEntry("a/d.txt"));
+                zos.closeEntry();
+            }
+
+            LocalFileObject archive = LocalFileObjectFactory.create(archivePath);
+
+            List<FileObject> topLevel = archive.getChildren();
+            assertNotNull(topLevel);
+            assertEquals(topLevel.toString(), 1, topLevel.size());
+            FileObject a = topLevel.get(0);
+            assertEquals("a", a.getName());
+            assertTrue(a.isDirectory());
+            assertEquals(archive, a.getParent());
+
+            List<FileObject> aChildren = a.getChildren();
+            assertNotNull(aChildren);
+            assertEquals(aChildren.toString(), 2, aChildren.size());
+
+            FileObject b = null;
+            for (FileObject child : aChildren) {
+                if (child.getName().equals("b")) {
+                    b = child;
+                } else {
+                    assertEquals("d.txt", child.getName());
+                    assertFalse(child.isDirectory());
+                }
+            }
+            assertNotNull(b);
+            assertTrue(b.isDirectory());
+            assertSame(a, b.getParent());
+
+            List<FileObject> bChildren = b.getChildren();
+            assertNotNull(bChildren);
+            assertEquals(bChildren.toString(), 1, bChildren.size());
+            FileObject c = bChildren.get(0);
+            assertEquals("c.txt", c.getName());
+            assertSame(b, c.getParent());
+            try (InputStream is = c.getInputStream()) {
+                assertNotNull(is);
+                assertEquals("c", IOUtils.toString(is, StandardCharsets.UTF_8));
+            }
+        } finally {
+            TestUtils.deleteFiles(archivePath);
+        }
+    }
+
+    @Test
+    public void testChildrenAreShared() throws IOException {
+        Path archivePath = null;
+        try {
+            archivePath = Files.createTempFile("ZipIndexTest.testChildrenAreShared", ".zip");
+            try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archivePath.toFile()))) {
+                zos.putNextEntry(new ZipEntry("dir/"));
+                zos.closeEntry();
+                zos.putNextEntry(new ZipEntry("dir/file.txt"));
+                zos.closeEntry();
+            }
+
+            LocalFileObject archive = LocalFileObjectFactory.create(archivePath);
+            List<FileObject> children1 = archive.getChildren();
+            List<FileObject> children2 = archive.getChildren();
+            assertNotNull(children1);
+            assertNotNull(children2);
+            assertEquals(1, children1.size());
+            // the same index is used for the same archive version
+            assertSame(children1.get(0), children2.get(0));
+        } finally {
+            TestUtils.deleteFiles(archivePath);
+        }
+    }
+}
@@ -13,13 +13,24 @@ import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.Collection;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public final class ZippedFileObjectTest {
+    /**
+     * Larger than the limit entries used to be read into memory up to (30 MB).
+     */
+    private static final long LARGE_ENTRY_SIZE = 31 * 1024 * 1024;
+
     @Test
     public void testZipArchiveFolderHierarchy() throws IOException {
         Path topDir = null;
@@ -115,4 +126,89 @@ public final class ZippedFileObjectTest {
             TestUtils.deleteFiles(topDir);
         }
     }
+
+    @Test
+    public void testArchiveChangeIsVisible() throws IOException {
+        Path topDir = null;
+        try {
+            topDir = Files.createTempDirectory("ZippedFileObjectTest.testArchiveChangeIsVisible");
+            Path archivePath = Files.createTempFile(topDir, "archive", ".zip");
+            Path file1 = Files.createTempFile(topDir, "file1", ".txt");
+            Path file2 = Files.createTempFile(topDir, "file2", ".txt");
+
+            TestUtils.zipSingleFile(file1, archivePath);
+            Files.setLastModifiedTime(archivePath, FileTime.fromMillis(1000));
+            LocalFileObject archive = LocalFileObjectFactory.create(archivePath);
+
+            List<FileObject> children1 = archive.getChildren();
+            assertNotNull(children1);
+            assertEquals(children1.toString(), 1, children1.size());
+            assertEquals(file1.getFileName().toString(), children1.get(0).getName());
+
+            // the same archive version: index is reused and contents are the same
+            List<FileObject> children2 = archive.getChildren();
+            assertEquals(children1, children2);
+
+            TestUtils.zipSingleFile(file2, archivePath);
+            Files.setLastModifiedTime(archivePath, FileTime.fromMillis(2000));
+
+            List<FileObject> children3 = archive.getChildren();
+            assertNotNull(children3);
+            assertEquals(children3.toString(), 1, children3.size());
+            assertEquals(file2.getFileName().toString(), children3.get(0).getName());
+        } finally {
+            TestUtils.deleteFiles(topDir);
+        }
+    }
+
+    @Test
+    public void testLargeEntryStreamed() throws IOException {
+        Path topDir = null;
+        try {
+            topDir = Files.createTempDirectory("ZippedFileObjectTest.testLargeEntryStreamed");
+            Path archivePath = topDir.resolve("archive.zip");
+            Path otherArchivePath = topDir.resolve("other.zip");
+            long entrySize = LARGE_ENTRY_SIZE;
+            writeArchive(archivePath, "large.bin", entrySize);
+            writeArchive(otherArchivePath, "small.bin", 1);
+
+            // entries larger than the former in-memory limit are read
+            LocalFileObject archive = LocalFileObjectFactory.create(archivePath);
+            List<FileObject> children = archive.getChildren();
+            assertNotNull(children);
+            assertEquals(children.toString(), 1, children.size());
+            try (InputStream is = children.get(0).getInputStream()) {
+                assertNotNull(is);
+                assertEquals(entrySize, IOUtils.skip(is, Long.MAX_VALUE));
+            }
+
+            // the stream holds the pooled zip file until it's closed
+            ZipFilePool pool = new ZipFilePool(1);
+            ZipFileHandle handle = pool.acquire(archivePath);
+            ZipFile zipFile = handle.getZipFile();
+            InputStream is = ZipUtils.getEntryInputStream(handle, "large.bin");
+            assertNotNull(is);
+            pool.acquire(otherArchivePath).close(); // evicts the archive which is still in use
+            assertEquals(1, zipFile.size());
+            is.close();
+            try {
+                zipFile.size();
+                fail("Zip file should be closed when the entry stream is closed");
+            } catch (IllegalStateException expected) {
+            }
+        } finally {
+            TestUtils.deleteFiles(topDir);
+        }
+    }
+
+    private static void writeArchive(Path archivePath, String entryName, long entrySize) throws IOException {
+        try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(archivePath))) {
+            zos.putNextEntry(new ZipEntry(entryName));
+            byte[] buffer = new byte[64 * 1024];
+            for (long written = 0; written < entrySize; written += buffer.length) {
+                zos.write(buffer, 0, (int) Math.min(buffer.length, entrySize - written));
+            }
+            zos.closeEntry();
+        }
+    }
 }